@@ -0,0 +1,251 @@
+package org.mars.cutter;
+
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.mars.cutter.domain.Bounds;
+import org.mars.cutter.domain.HVHoughs;
+import org.mars.cutter.domain.Hough;
+import org.mars.cutter.domain.Rotation;
+import org.mars.cutter.util.CacheDirectory;
+import org.opencv.core.Point;
+
+/**
+ * Detection results kept on disk between sessions, so an image analyzed before only has its proxy loaded again.
+ * <p>
+ * Entries are keyed by the {@link CacheDirectory#fileDigest(Path) file}, and its content sampled so it stays fast on big
+ * scans: its first, middle and last {@value #SAMPLE_SIZE} bytes. A detection is stored along with the {@link DetectionParams} it ran with, while the quadris the operator
+ * left are stored by file only, so they're found again whatever the params of the next session.
+ * <p>
+ * An entry holds the cardinal lines, the bounds as indices into them, and the quadris as the operator left them:
+ * <pre>
+ *   int magic, byte version
+ *   short count, (double rho, double theta) * count          horizontal lines
+ *   short count, (double rho, double theta) * count          vertical lines
+ *   short count, (short h1, short h2, short v1, short v2) * count     bounds
+ *   short count, (utf name, double x * 4, double y * 4, byte rotation, int argb) * count     quadris
+ * </pre>
+ * The least recently looked up entries are evicted once the cache holds more bytes than its capacity. Cache failures are
+ * only logged, the detection just runs again.
+ */
+@Slf4j
+public final class AnalysisCache {
+
+  private static final int SAMPLE_SIZE = 64 * 1024;
+  private static final int MAGIC = 0x49434143; // ICAC
+  private static final byte VERSION = 1;
+  private static final String EXTENSION = ".bin";
+
+  /**
+   * What the detection found on an image, and the quadris the operator made of it
+   */
+  public record Entry(HVHoughs hvHoughs, List<Bounds> bounds, List<Quadri> quadris) {}
+
+  private final CacheDirectory directory;
+
+  public AnalysisCache(Path directory, long capacity) {
+    this.directory = new CacheDirectory(directory, EXTENSION, capacity);
+  }
+
+  /**
+   * @return what the file's entries are keyed by
+   */
+  public static String fileKey(Path file) throws IOException {
+    MessageDigest digest = CacheDirectory.fileDigest(file);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long fileSize = channel.size();
+      ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+      long[] positions = fileSize <= 3L * SAMPLE_SIZE
+          ? new long[] {0}
+          : new long[] {0, (fileSize - SAMPLE_SIZE) / 2, fileSize - SAMPLE_SIZE};
+      for (long position : positions) {
+        long limit = fileSize <= 3L * SAMPLE_SIZE ? fileSize : position + SAMPLE_SIZE;
+        while (position < limit) {
+          sample.clear().limit((int) Math.min(SAMPLE_SIZE, limit - position));
+          int read = channel.read(sample, position);
+          if (read < 0) {
+            break; // truncated meanwhile
+          }
+          position += read;
+          digest.update(sample.flip());
+        }
+      }
+    }
+    return CacheDirectory.key(digest);
+  }
+
+  /**
+   * @return the quadris the operator left on the file if any, else what the detection found with these params, null if
+   * neither is in the cache
+   */
+  public Entry get(String fileKey, DetectionParams params) {
+    Entry edits = read(editsKey(fileKey));
+    return edits != null ? edits : read(entryKey(fileKey, params));
+  }
+
+  public void put(String fileKey, DetectionParams params, Entry entry) {
+    write(entryKey(fileKey, params), entry);
+  }
+
+  /**
+   * Keeps the quadris as the operator left them, they're then found whatever the params
+   */
+  public void putEdits(String fileKey, Entry entry) {
+    write(editsKey(fileKey), entry);
+  }
+
+  public void deleteEdits(String fileKey) {
+    directory.delete(directory.resolve(editsKey(fileKey)));
+  }
+
+  private Entry read(String key) {
+    Path entryFile = directory.resolve(key);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entryFile)))) {
+      Entry entry = read(in);
+      directory.touch(entryFile);
+      return entry;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | RuntimeException e) {
+      log.warn("Dropping unreadable analysis cache entry: {}", entryFile, e);
+      directory.delete(entryFile);
+      return null;
+    }
+  }
+
+  private void write(String key, Entry entry) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      write(new DataOutputStream(bytes), entry);
+      directory.put(key, ByteBuffer.wrap(bytes.toByteArray()));
+    } catch (IOException | RuntimeException e) {
+      log.warn("Cannot write analysis cache entry: {}", key, e);
+    }
+  }
+
+  private static String editsKey(String fileKey) {
+    MessageDigest digest = CacheDirectory.digest();
+    digest.update(HexFormat.of().parseHex(fileKey));
+    digest.update("edits".getBytes(StandardCharsets.UTF_8));
+    return CacheDirectory.key(digest);
+  }
+
+  private static String entryKey(String fileKey, DetectionParams params) {
+    MessageDigest digest = CacheDirectory.digest();
+    digest.update(HexFormat.of().parseHex(fileKey));
+    ByteBuffer values = ByteBuffer.allocate(Integer.BYTES * 2 + Double.BYTES * 4 + 1)
+        .putInt(params.getTempDimension())
+        .putDouble(params.getCannyThreshold())
+        .putDouble(params.getCannyRatio())
+        .putDouble(params.getHoughTheta())
+        .putInt(params.getHoughThreshold())
+        .putDouble(params.getHvAngleTolerance())
+        .put((byte) (params.isCardinalHough() ? 1 : 0));
+    digest.update(values.flip());
+    return CacheDirectory.key(digest);
+  }
+
+  private static void write(DataOutputStream out, Entry entry) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+
+    List<Hough> horizontals = entry.hvHoughs().horizontals();
+    List<Hough> verticals = entry.hvHoughs().verticals();
+    writeLines(out, horizontals);
+    writeLines(out, verticals);
+
+    out.writeShort(entry.bounds().size());
+    for (Bounds bounds : entry.bounds()) {
+      out.writeShort(indexOf(horizontals, bounds.h1()));
+      out.writeShort(indexOf(horizontals, bounds.h2()));
+      out.writeShort(indexOf(verticals, bounds.v1()));
+      out.writeShort(indexOf(verticals, bounds.v2()));
+    }
+
+    out.writeShort(entry.quadris().size());
+    for (Quadri quadri : entry.quadris()) {
+      out.writeUTF(quadri.getName());
+      for (Point point : quadri.toPoints()) {
+        out.writeDouble(point.x);
+        out.writeDouble(point.y);
+      }
+      out.writeByte(quadri.getRotation().ordinal());
+      out.writeInt(quadri.getColor().getRGB());
+    }
+    out.flush();
+  }
+
+  private static void writeLines(DataOutputStream out, List<Hough> lines) throws IOException {
+    out.writeShort(lines.size());
+    for (Hough line : lines) {
+      out.writeDouble(line.getRho());
+      out.writeDouble(line.getTheta());
+    }
+  }
+
+  /**
+   * Bounds are made of the cardinal lines themselves, not of copies
+   */
+  private static int indexOf(List<Hough> lines, Hough line) {
+    for (int i = 0; i < lines.size(); i++) {
+      if (lines.get(i) == line) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Bounds line not among the cardinal lines: " + line);
+  }
+
+  private static Entry read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+      throw new IOException("Not an analysis cache entry of version " + VERSION);
+    }
+
+    List<Hough> horizontals = readLines(in);
+    List<Hough> verticals = readLines(in);
+
+    int boundsCount = in.readUnsignedShort();
+    List<Bounds> bounds = new ArrayList<>(boundsCount);
+    for (int i = 0; i < boundsCount; i++) {
+      bounds.add(new Bounds(horizontals.get(in.readShort()), horizontals.get(in.readShort()),
+          verticals.get(in.readShort()), verticals.get(in.readShort())));
+    }
+
+    int quadriCount = in.readUnsignedShort();
+    List<Quadri> quadris = new ArrayList<>(quadriCount);
+    for (int i = 0; i < quadriCount; i++) {
+      String name = in.readUTF();
+      Point[] points = new Point[4];
+      for (int p = 0; p < points.length; p++) {
+        points[p] = new Point(in.readDouble(), in.readDouble());
+      }
+      Rotation rotation = Rotation.values()[in.readByte()];
+      Color color = new Color(in.readInt(), true);
+      quadris.add(new Quadri(name, points[0], points[1], points[2], points[3], color, rotation));
+    }
+    return new Entry(new HVHoughs(horizontals, verticals), bounds, quadris);
+  }
+
+  private static List<Hough> readLines(DataInputStream in) throws IOException {
+    int count = in.readUnsignedShort();
+    List<Hough> lines = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      lines.add(new Hough(in.readDouble(), in.readDouble()));
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,181 @@
+package org.mars.cutter;
+
+import java.util.Arrays;
+import lombok.Getter;
+import org.mars.cutter.domain.EdgeMap;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The threshold independent part of a Canny edge detection (aperture 3, L2 gradient): Sobel gradients and
+ * non-maximum suppression. Only the pixels that are a local maximum along their gradient direction are kept,
+ * along with their magnitude, so a new pair of thresholds only costs a hysteresis pass.
+ * <p>
+ * Follows OpenCV's Canny step by step, so the edges are the same as Imgproc.Canny(gray, edges, low, high, 3, true).
+ */
+public final class CannyGradients {
+
+  private static final int CANNY_SHIFT = 15;
+  private static final int TG22 = (int) (0.4142135623730950488016887242097 * (1 << CANNY_SHIFT) + 0.5);
+
+  @Getter
+  private final int width;
+  @Getter
+  private final int height;
+
+  private final int[] indices; // pixels surviving the non-maximum suppression, row by row
+  private final int[] magnitudes; // and their squared gradient magnitude
+
+  private CannyGradients(int width, int height, int[] indices, int[] magnitudes) {
+    this.width = width;
+    this.height = height;
+    this.indices = indices;
+    this.magnitudes = magnitudes;
+  }
+
+  public static CannyGradients of(Mat grayMat) {
+    int width = grayMat.cols();
+    int height = grayMat.rows();
+
+    short[] dx = sobel(grayMat, 1, 0);
+    short[] dy = sobel(grayMat, 0, 1);
+
+    // rolling magnitude rows with a zero column on each side: previous, current and next rows
+    int[] magP = new int[width + 2];
+    int[] magA = new int[width + 2];
+    int[] magN = new int[width + 2];
+    if (height > 0) {
+      magnitudeRow(dx, dy, width, 0, magA);
+    }
+
+    int[] indices = new int[Math.max(16, width * height / 16)];
+    int[] magnitudes = new int[indices.length];
+    int count = 0;
+
+    for (int i = 0; i < height; i++) {
+      if (i + 1 < height) {
+        magnitudeRow(dx, dy, width, i + 1, magN);
+      } else {
+        Arrays.fill(magN, 0);
+      }
+
+      int row = i * width;
+      for (int j = 0; j < width; j++) {
+        int m = magA[j + 1];
+        if (m > 0 && isLocalMaximum(dx[row + j], dy[row + j], m, j + 1, magP, magA, magN)) {
+          if (count == indices.length) {
+            int newLength = indices.length * 2;
+            indices = Arrays.copyOf(indices, newLength);
+            magnitudes = Arrays.copyOf(magnitudes, newLength);
+          }
+          indices[count] = row + j;
+          magnitudes[count] = m;
+          count++;
+        }
+      }
+
+      int[] recycled = magP;
+      magP = magA;
+      magA = magN;
+      magN = recycled;
+    }
+
+    return new CannyGradients(width, height, Arrays.copyOf(indices, count), Arrays.copyOf(magnitudes, count));
+  }
+
+  private static short[] sobel(Mat grayMat, int xOrder, int yOrder) {
+    Mat derivative = new Mat();
+    try {
+      Imgproc.Sobel(grayMat, derivative, CvType.CV_16S, xOrder, yOrder, 3, 1, 0, Core.BORDER_REPLICATE);
+      short[] data = new short[grayMat.cols() * grayMat.rows()];
+      derivative.get(0, 0, data);
+      return data;
+    } finally {
+      derivative.release();
+    }
+  }
+
+  private static void magnitudeRow(short[] dx, short[] dy, int width, int y, int[] mag) {
+    int row = y * width;
+    for (int j = 0; j < width; j++) {
+      int x = dx[row + j], yy = dy[row + j];
+      mag[j + 1] = x * x + yy * yy;
+    }
+  }
+
+  private static boolean isLocalMaximum(short xs, short ys, int m, int j, int[] magP, int[] magA, int[] magN) {
+    int x = Math.abs(xs);
+    int y = Math.abs(ys) << CANNY_SHIFT;
+    int tg22x = x * TG22;
+
+    if (y < tg22x) { // horizontal gradient
+      return m > magA[j - 1] && m >= magA[j + 1];
+    } else {
+      int tg67x = tg22x + (x << (CANNY_SHIFT + 1));
+      if (y > tg67x) { // vertical gradient
+        return m > magP[j] && m >= magN[j];
+      } else { // diagonal
+        int s = (xs ^ ys) < 0 ? -1 : 1;
+        return m > magP[j - s] && m > magN[j + s];
+      }
+    }
+  }
+
+  /**
+   * @return the edges: local maxima above the high threshold, and those above the low one connected (8-way) to them
+   */
+  public EdgeMap hysteresis(double lowThreshold, double highThreshold) {
+    if (lowThreshold > highThreshold) {
+      double swap = lowThreshold;
+      lowThreshold = highThreshold;
+      highThreshold = swap;
+    }
+    // the magnitudes are squared
+    lowThreshold = Math.min(32767.0, lowThreshold);
+    highThreshold = Math.min(32767.0, highThreshold);
+    if (lowThreshold > 0) {
+      lowThreshold *= lowThreshold;
+    }
+    if (highThreshold > 0) {
+      highThreshold *= highThreshold;
+    }
+    int low = (int) Math.floor(lowThreshold);
+    int high = (int) Math.floor(highThreshold);
+
+    byte[] map = new byte[width * height]; // 0: not an edge, 1: weak candidate, 2: edge
+    int[] stack = new int[Math.max(16, indices.length)];
+    int top = 0;
+    for (int k = 0; k < indices.length; k++) {
+      int m = magnitudes[k];
+      if (m > low) {
+        if (m > high) {
+          map[indices[k]] = 2;
+          stack[top++] = indices[k];
+        } else {
+          map[indices[k]] = 1;
+        }
+      }
+    }
+
+    while (top > 0) {
+      int index = stack[--top];
+      int x = index % width, y = index / width;
+      for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+        for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+          int neighbour = ny * width + nx;
+          if (map[neighbour] == 1) {
+            map[neighbour] = 2;
+            stack[top++] = neighbour; // can't overflow, each candidate is pushed once at most
+          }
+        }
+      }
+    }
+
+    for (int p = 0; p < map.length; p++) {
+      map[p] = map[p] == 2 ? (byte) 255 : 0;
+    }
+    return new EdgeMap(width, height, map);
+  }
+}
@@ -0,0 +1,118 @@
+package org.mars.cutter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import org.mars.cutter.domain.EdgeMap;
+import org.mars.cutter.domain.HoughVotes;
+
+/**
+ * Standard Hough transform that only votes in the theta windows around vertical (0 and π) and horizontal (π/2).
+ * <p>
+ * It mimics OpenCV's HoughLinesStandard: same theta grid (float angles accumulated from 0), same rho binning
+ * (cvRound, i.e. round half to even), same local maximum test and same ordering of the results.
+ * Windows are widened by a couple of bins past the angle tolerance so the local maximum test of every bin within
+ * the tolerance sees the same neighbours as a full 0..π accumulator would. What lies outside the tolerance is to be
+ * discarded by the caller.
+ * With the default 0.2° step and 0.75° tolerance that's 27 angles voted instead of 900.
+ */
+public final class CardinalHough {
+
+  private static final int MARGIN_BINS = 2;
+
+  private CardinalHough() {}
+
+  public static HoughVotes vote(EdgeMap edges, double thetaStep, int threshold, double angleTolerance) {
+    float rho = 1.f;
+    float theta = (float) thetaStep;
+    int width = edges.getWidth();
+    int height = edges.getHeight();
+    byte[] pixels = edges.getPixels();
+
+    int numangle = computeNumangle(theta);
+    int numrho = (int) Math.rint(((width + height) * 2 + 1) / rho);
+    int rhoOffset = (numrho - 1) / 2;
+
+    float[] tabSin = new float[numangle];
+    float[] tabCos = new float[numangle];
+    float irho = 1 / rho;
+    float ang = 0.f;
+    for (int n = 0; n < numangle; ang += theta, n++) {
+      tabSin[n] = (float) (Math.sin(ang) * irho);
+      tabCos[n] = (float) (Math.cos(ang) * irho);
+    }
+
+    int halfWindow = Math.min((int) Math.ceil(angleTolerance / theta) + MARGIN_BINS, numangle / 4 - 1); // windows must not overlap
+    int horizontal = (int) Math.round(Math.PI / 2 / theta);
+    int[][] windows = {
+        {0, halfWindow},
+        {horizontal - halfWindow, horizontal + halfWindow},
+        {numangle - halfWindow, numangle - 1}
+    };
+
+    // one accumulator per window, with a padding row/column all around just like OpenCV's
+    int stride = numrho + 2;
+    int[][] accums = new int[windows.length][];
+    for (int w = 0; w < windows.length; w++) {
+      accums[w] = new int[(windows[w][1] - windows[w][0] + 3) * stride];
+    }
+
+    for (int i = 0; i < height; i++) {
+      int row = i * width;
+      for (int j = 0; j < width; j++) {
+        if (pixels[row + j] != 0) {
+          for (int w = 0; w < windows.length; w++) {
+            int[] accum = accums[w];
+            int first = windows[w][0], last = windows[w][1];
+            for (int n = first; n <= last; n++) {
+              int r = (int) Math.rint(j * tabCos[n] + i * tabSin[n]) + rhoOffset;
+              accum[(n - first + 1) * stride + r + 1]++;
+            }
+          }
+        }
+      }
+    }
+
+    // local maxima, identified by their index in a full 0..π accumulator so they sort the same way
+    List<int[]> maxima = new ArrayList<>();
+    for (int w = 0; w < windows.length; w++) {
+      int[] accum = accums[w];
+      int first = windows[w][0], last = windows[w][1];
+      for (int n = first; n <= last; n++) {
+        for (int r = 0; r < numrho; r++) {
+          int base = (n - first + 1) * stride + r + 1;
+          int val = accum[base];
+          if (val > threshold
+              && val > accum[base - 1] && val >= accum[base + 1]
+              && val > accum[base - stride] && val >= accum[base + stride]) {
+            maxima.add(new int[] {(n + 1) * stride + r + 1, val, n, r});
+          }
+        }
+      }
+    }
+    maxima.sort(Comparator.<int[]>comparingInt(m -> -m[1]).thenComparingInt(m -> m[0]));
+
+    int count = maxima.size();
+    float[] rhos = new float[count];
+    float[] thetas = new float[count];
+    int[] votes = new int[count];
+    for (int i = 0; i < count; i++) {
+      int[] maximum = maxima.get(i);
+      votes[i] = maximum[1];
+      thetas[i] = maximum[2] * theta;
+      rhos[i] = (maximum[3] - (numrho - 1) * 0.5f) * rho;
+    }
+    return new HoughVotes(rhos, thetas, votes, threshold, angleTolerance);
+  }
+
+  /**
+   * Same as OpenCV: the last angle is dropped when it's π, so lines aren't detected twice
+   */
+  private static int computeNumangle(double thetaStep) {
+    int numangle = (int) Math.floor(Math.PI / thetaStep) + 1;
+    if (numangle > 1 && Math.abs(Math.PI - (numangle - 1) * thetaStep) < thetaStep / 2) {
+      --numangle;
+    }
+    return numangle;
+  }
+}
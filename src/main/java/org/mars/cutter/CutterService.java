@@ -1,32 +1,48 @@
 package org.mars.cutter;
 
-import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.Polygon;
 import java.awt.Rectangle;
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
-import javax.imageio.ImageIO;
 import lombok.extern.slf4j.Slf4j;
+import org.mars.cutter.crop.BatchQuadriWarp;
+import org.mars.cutter.crop.QuadriWarp;
+import org.mars.cutter.domain.Outline;
+import org.mars.cutter.io.BmpFile;
+import org.mars.cutter.io.OutputCodec;
+import org.mars.cutter.io.ProxyCache;
 import org.mars.cutter.util.FileUtils;
 import org.mars.cutter.util.ImageUtils;
+import org.mars.cutter.util.MemoryBudget;
 import org.opencv.core.Rect2d;
+import org.opencv.core.Size;
 
 @Slf4j
 public class CutterService {
   public static final List<String> IMAGE_EXTENSIONS_ACCEPTED = Arrays.asList("bmp", "png");
-  public static final String QUADRI_EXTENSION = "png";
 
   public static final String PREFIX_DONE = "done-";
   public static final String PREFIX_CROPPING = "cropping-";
@@ -34,17 +50,73 @@ public class CutterService {
   private static final List<String> SKIPPED_PREFIXES = Arrays.asList(PREFIX_DONE, PREFIX_QUADRI);
 
 
+  public static final int PREFETCH_COUNT = 2; // images analyzed ahead of the operator
+  public static final long PREFETCH_MEMORY_BUDGET = 1L << 30; // bytes the images analyzed ahead may hold altogether
+  public static final int CROP_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  public static final long CROP_MEMORY_BUDGET = 1L << 30; // bytes the crops in progress may hold altogether
+  public static final Path ANALYSIS_CACHE_DIRECTORY = Path.of(System.getProperty("user.home"), ".imagecutter", "analysis");
+  public static final long ANALYSIS_CACHE_CAPACITY = 64L << 20; // a few hundred bytes per image
+  public static final Path PROXY_CACHE_DIRECTORY = Path.of(System.getProperty("user.home"), ".imagecutter", "proxies");
+  public static final long PROXY_CACHE_CAPACITY = 2L << 30; // about a hundred 3000px proxies
+
+  /**
+   * An image analyzed ahead, along with the params it's analyzed with and the bytes it holds from the budget
+   */
+  private record Prefetch(Path path, DetectionParams params, long bytes, CompletableFuture<ImageContext> analysis) {}
+
 
-  private Path currentImagePath;
   private final Iterator<Path> iterator;
+  private final ExecutorService analysisExecutor = Executors.newSingleThreadExecutor(daemonThreads("analysis"));
+
+  private final int prefetchCount;
+  private final MemoryBudget prefetchBudget;
+  private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(daemonThreads("prefetch"));
+  private final Deque<Prefetch> prefetched = new ArrayDeque<>();
+  private Path pendingImagePath; // pulled from the iterator, but waiting for room in the budget to be analyzed ahead
+
+  private final ForkJoinPool cropExecutor; // the crop tasks, and the warp tiles and encoder blocks they fork
+  private final ExecutorService cropAdmissionExecutor = Executors.newSingleThreadExecutor(daemonThreads("crop-admission"));
+  private final MemoryBudget cropBudget;
+  private final OutputCodec outputCodec;
+
+  private final AnalysisCache analysisCache;
+  private final ProxyCache proxyCache;
+  private final ExecutorService cacheExecutor = Executors.newSingleThreadExecutor(daemonThreads("analysis-cache"));
 
   public CutterService(Path rootDir) throws IOException {
+    this(rootDir, OutputCodec.DEFAULT);
+  }
+
+  public CutterService(Path rootDir, OutputCodec outputCodec) throws IOException {
+    this(rootDir, PREFETCH_COUNT, PREFETCH_MEMORY_BUDGET, CROP_THREADS, CROP_MEMORY_BUDGET, outputCodec,
+        new AnalysisCache(ANALYSIS_CACHE_DIRECTORY, ANALYSIS_CACHE_CAPACITY), new ProxyCache(PROXY_CACHE_DIRECTORY, PROXY_CACHE_CAPACITY));
+  }
+
+  /**
+   * @param prefetchCount how many of the next images are analyzed in the background, 0 for none
+   * @param prefetchMemoryBudget how many bytes those may hold altogether
+   * @param cropThreads how many threads crop and save the quadris: both the tasks and the warp tiles and encoder blocks
+   * they split into run on them, so it bounds the CPU the crops take
+   * @param cropMemoryBudget how many bytes the crops in progress may hold altogether before confirming has to wait
+   * @param outputCodec how the quadris are saved
+   * @param analysisCache where the detections are kept between sessions, null for nowhere
+   * @param proxyCache where the proxy images are kept between sessions, null for nowhere
+   */
+  public CutterService(Path rootDir, int prefetchCount, long prefetchMemoryBudget, int cropThreads, long cropMemoryBudget,
+      OutputCodec outputCodec, AnalysisCache analysisCache, ProxyCache proxyCache) throws IOException {
     try(Stream<Path> stream = Files.walk(rootDir)
         .filter(path -> Files.isRegularFile(path)
             && IMAGE_EXTENSIONS_ACCEPTED.contains(FileUtils.getExt(path))
             && !knownPrefix(path))) {
       iterator = stream.toList().iterator();
     }
+    this.prefetchCount = prefetchCount;
+    this.prefetchBudget = new MemoryBudget(prefetchMemoryBudget);
+    this.cropExecutor = new ForkJoinPool(cropThreads, daemonWorkers("crop"), null, false);
+    this.cropBudget = new MemoryBudget(cropMemoryBudget);
+    this.outputCodec = outputCodec;
+    this.analysisCache = analysisCache;
+    this.proxyCache = proxyCache;
   }
 
   private boolean knownPrefix(Path path) {
@@ -52,128 +124,406 @@ public class CutterService {
     return SKIPPED_PREFIXES.stream().anyMatch(fileName::startsWith);
   }
 
-  public ImageContext reset(DetectionParams params) throws IOException {
-    log.info("Resetting: {}", currentImagePath);
-    return analyzeImage(currentImagePath, params);
+  /**
+   * Brings the quadris of the image back to what the detection finds, in the background, the analysis cache being
+   * overwritten rather than read. The detection runs on the image's own pipeline, so only the stages whose params were
+   * edited since are computed again. Cancelling the returned future interrupts the detection.
+   * @return the same image context, once detected again
+   */
+  public CompletableFuture<ImageContext> reset(ImageContext imageContext, DetectionParams params) {
+    log.info("Resetting: {}", imageContext.getFile());
+    return submit(analysisExecutor, () -> {
+      detectOutline(imageContext, params, false);
+      return imageContext;
+    });
+  }
+
+  /**
+   * Runs the detection on the image again in the background.
+   * Cancelling the returned future interrupts the detection, which then stops before its next stage.
+   */
+  public CompletableFuture<Outline> redetect(ImageContext imageContext, DetectionParams params) {
+    return submit(analysisExecutor, () -> imageContext.analyze(params));
   }
 
-  public ImageContext skip(DetectionParams params) throws IOException {
-    if(iterator.hasNext()) {
-      Path nextImage = iterator.next();
-      String fileName = nextImage.getFileName().toString();
-      if(fileName.startsWith(PREFIX_CROPPING)) {
-        nextImage = Files.move(nextImage, nextImage.resolveSibling(fileName.substring(PREFIX_CROPPING.length())));
+  /**
+   * Moves on to the next image, already analyzed in the background most of the time, and analyzes the ones after it
+   * ahead. Cancelling the returned future interrupts the analysis.
+   * @return the analyzed image, or null once there are no more images to process
+   */
+  public CompletableFuture<ImageContext> skip(DetectionParams params) {
+    CompletableFuture<ImageContext> analysis;
+    Prefetch prefetch = prefetched.pollFirst();
+    if(prefetch != null) {
+      prefetchBudget.release(prefetch.bytes());
+      log.info("Analyzed ahead: {}", prefetch.path());
+      analysis = takePrefetched(prefetch, params);
+    } else {
+      Path nextImage;
+      try {
+        nextImage = pollImage();
+      } catch (IOException e) {
+        return CompletableFuture.failedFuture(e);
       }
-      currentImagePath = nextImage;
-      log.info("Analyzing: {}", currentImagePath);
-      return analyzeImage(currentImagePath, params);
+      if(nextImage == null) {
+        log.info("No more images to process");
+        return CompletableFuture.completedFuture(null);
+      }
+      log.info("Analyzing: {}", nextImage);
+      analysis = submit(analysisExecutor, () -> analyzeImage(nextImage, params), CutterService::clean);
+    }
+    prefetch(params);
+    return analysis;
+  }
+
+  /**
+   * The image was analyzed with the params of the former skip, so the detection has to run again if they were edited since.
+   * Its stages being memoized, only those downstream of the edit are computed again.
+   */
+  private CompletableFuture<ImageContext> takePrefetched(Prefetch prefetch, DetectionParams params) {
+    if(params.equals(prefetch.params())) {
+      return prefetch.analysis();
+    } else if(params.getTempDimension() != prefetch.params().getTempDimension()) {
+      prefetch.analysis().cancel(true);
+      prefetch.analysis().thenAccept(CutterService::clean); // already analyzed, with another proxy
+      return submit(analysisExecutor, () -> analyzeImage(prefetch.path(), params), CutterService::clean);
     } else {
-      log.info("No more images to process");
-      return null;
+      return redetectPrefetched(prefetch.analysis(), params);
     }
   }
 
+  /**
+   * Detects again once the analysis ahead is done. Cancelling the returned future cancels whichever of the two is running,
+   * and cleans the image context.
+   */
+  private CompletableFuture<ImageContext> redetectPrefetched(CompletableFuture<ImageContext> analysis, DetectionParams params) {
+    CompletableFuture<ImageContext> result = new CompletableFuture<>();
+    AtomicReference<Future<?>> running = new AtomicReference<>(analysis);
+    analysis.whenComplete((imageContext, failure) -> {
+      if(failure != null) {
+        result.completeExceptionally(failure);
+        return;
+      }
+      CompletableFuture<ImageContext> redetection = submit(analysisExecutor, () -> {
+        detectOutline(imageContext, params, true);
+        return imageContext;
+      });
+      running.set(redetection);
+      if(result.isCancelled()) {
+        redetection.cancel(true); // cancelled before the redetection was submitted
+      }
+      redetection.whenComplete((value, redetectionFailure) -> {
+        if(redetectionFailure == null) {
+          result.complete(value);
+        } else {
+          if(!redetection.isCancelled()) { // a cancelled one is cleaned once the redetection stops
+            clean(imageContext);
+          }
+          result.completeExceptionally(redetectionFailure);
+        }
+      });
+    });
+    result.whenComplete((value, failure) -> {
+      if(result.isCancelled()) {
+        running.get().cancel(true);
+        // on the analysis thread, so it's cleaned once the redetection running on it, if any, is interrupted
+        analysis.thenAccept(imageContext -> analysisExecutor.execute(() -> clean(imageContext)));
+      }
+    });
+    return result;
+  }
 
-  private static boolean async = true;
+  /**
+   * Fills the read-ahead window, as long as the images fit in the budget
+   */
+  private void prefetch(DetectionParams params) {
+    while(prefetched.size() < prefetchCount) {
+      if(pendingImagePath == null) {
+        if(!iterator.hasNext()) {
+          return;
+        }
+        pendingImagePath = iterator.next();
+      }
 
-  public void confirm(ImageContext imageContext) {
-    if(imageContext.getQuadris().isEmpty()) {
-      log.info("Nothing to crop in: {}", imageContext.getFile());
-      return;
+      long bytes = estimateBytes(pendingImagePath, params);
+      if(!prefetchBudget.tryAcquire(bytes)) {
+        log.debug("Not enough memory left to analyze ahead: {}", pendingImagePath);
+        return; // until the operator moves on
+      }
+
+      Path nextImage = pendingImagePath;
+      pendingImagePath = null;
+      try {
+        Path restoredImage = restoreCropping(nextImage);
+        prefetched.add(new Prefetch(restoredImage, params, bytes,
+            submit(prefetchExecutor, () -> analyzeImage(restoredImage, params), CutterService::clean)));
+      } catch (IOException e) {
+        prefetched.add(new Prefetch(nextImage, params, bytes, CompletableFuture.failedFuture(e))); // reported once the operator gets there
+      }
     }
+  }
 
-    log.info("Start cropping: {}", imageContext.getFile());
+  private static long estimateBytes(Path image, DetectionParams params) {
+    try {
+      return ImageContext.estimateBytes(ImageUtils.readSize(image), params.getTempDimension());
+    } catch (IOException e) {
+      log.warn("Cannot read the size of: {}", image);
+      return 0; // its analysis will fail anyway
+    }
+  }
+
+  /**
+   * @return the next image to process, or null if there are none left
+   */
+  private Path pollImage() throws IOException {
+    Path nextImage = pendingImagePath;
+    pendingImagePath = null;
+    if(nextImage == null) {
+      if(!iterator.hasNext()) {
+        return null;
+      }
+      nextImage = iterator.next();
+    }
+    return restoreCropping(nextImage);
+  }
+
+  /**
+   * Images whose cropping was interrupted get their original name back
+   */
+  private static Path restoreCropping(Path image) throws IOException {
+    String fileName = image.getFileName().toString();
+    if(fileName.startsWith(PREFIX_CROPPING)) {
+      return Files.move(image, image.resolveSibling(fileName.substring(PREFIX_CROPPING.length())));
+    }
+    return image;
+  }
+
+
+  private static boolean async = true;
+  private static boolean batch = true; // pages mostly covered by quadris cropped in a single sweep of the original
+  private static final double BATCH_COVERAGE = 0.5; // below that, reading each quadri's region on its own is cheaper
+
+  /**
+   * Crops and saves the quadris in the background, once the memory they need is available.
+   * @return completed once the crops are admitted, which waits for former ones to finish when memory is short
+   */
+  public CompletableFuture<Void> confirm(ImageContext imageContext) {
+    List<Quadri> quadris = croppable(imageContext.getQuadrisOriginal(), imageContext.getFile());
+    if(quadris.isEmpty()) {
+      log.info("Nothing to crop in: {}", imageContext.getFile());
+      return CompletableFuture.completedFuture(null);
+    }
 
     Path croppingFile = imageContext.getFile().resolveSibling(PREFIX_CROPPING + imageContext.getFileName());
     try {
       Files.move(imageContext.getFile(), croppingFile);
     } catch (IOException e) {
       log.error("Cannot rename {} to {}, aborting cropping", imageContext.getFile(), croppingFile);
-      return;
+      return CompletableFuture.completedFuture(null);
     }
 
-    BufferedImage originalImage = imageContext.getOriginalImage();
-    List<Quadri> quadris = imageContext.getQuadrisOriginal();
-    List<Path> quadriFiles = getUnusedImageFiles(imageContext.getFile().getParent(), PREFIX_QUADRI, '.'+QUADRI_EXTENSION, quadris.size());
-    CompletableFuture[] futures = new CompletableFuture[quadris.size()];
+    List<Path> quadriFiles = getUnusedImageFiles(imageContext.getFile().getParent(), PREFIX_QUADRI, '.'+outputCodec.getExtension(), quadris.size());
+    Size originalSize = imageContext.getOriginalSize();
+    // the quadris scanned by columns, turned ones mostly, gain nothing from a sweep and read their own region
+    boolean[] swept = new boolean[quadris.size()];
+    List<Quadri> sweptQuadris = new ArrayList<>();
+    if(batch) {
+      for (int q = 0; q < quadris.size(); q++) {
+        if(!new QuadriWarp(quadris.get(q)).isColumnScan()) {
+          swept[q] = true;
+          sweptQuadris.add(quadris.get(q));
+        }
+      }
+      if(coverage(sweptQuadris, originalSize) <= BATCH_COVERAGE) {
+        Arrays.fill(swept, false);
+        sweptQuadris.clear();
+      }
+    }
+    long bytes = estimateCropBytes(imageContext.getFile(), originalSize, quadris, swept);
+
+    return submit(cropAdmissionExecutor, () -> {
+      cropBudget.acquire(bytes);
+      log.info("Start cropping: {}", imageContext.getFile());
+      CompletableFuture[] futures = new CompletableFuture[quadris.size()];
+      Executor executor = async ? cropExecutor : Runnable::run;
+
+      // the context only holds the proxy, the original is read again
+      CompletableFuture<List<BufferedImage>> sweptImages = sweptQuadris.isEmpty() ? null : CompletableFuture.supplyAsync(
+          () -> cutQuadris(croppingFile, sweptQuadris), executor);
+      for (int q = 0, sweptIndex = 0; q < quadris.size(); q++) {
+        Quadri quadri = quadris.get(q);
+        Path quadriFile = quadriFiles.get(q);
+        if(swept[q]) { // one sweep of the whole original for those quadris, then each one is saved on its own
+          int index = sweptIndex++;
+          futures[q] = sweptImages.thenAcceptAsync(images -> saveQuadri(images.get(index), quadriFile), executor);
+        } else { // the quadri only reads its own region of the original
+          futures[q] = CompletableFuture.runAsync(() -> cutAndSaveQuadri(croppingFile, originalSize, quadri, quadriFile), executor);
+        }
+      }
 
-    for (int q = 0; q < quadris.size(); q++) {
-      Quadri quadri = quadris.get(q);
-      Path quadriFile = quadriFiles.get(q);
-      futures[q] = async
-          ? CompletableFuture.runAsync(() -> cutAndSaveQuadri(originalImage, quadri, quadriFile))
-          : CompletableFuture.completedFuture(cutAndSaveQuadri(originalImage, quadri, quadriFile));
+      CompletableFuture.allOf(futures).whenComplete((v, failure) -> {
+        cropBudget.release(bytes);
+        if(failure != null) {
+          log.error("Cropping failed: {}", imageContext.getFile(), failure);
+          deleteQuadriFiles(quadriFiles); // so cropping the page again doesn't number its quadris after those
+          return; // left as cropping so it's offered again next time
+        }
+        Path doneFile = imageContext.getFile().resolveSibling(PREFIX_DONE + imageContext.getFileName());
+        try {
+          Files.move(croppingFile, doneFile);
+        } catch (IOException e) {
+          log.error("Cannot rename {} to {}", croppingFile, doneFile);
+        }
+        log.info("Finished cropping: {}", imageContext.getFile());
+      });
+      return null;
+    });
+  }
+
+  /**
+   * Only decodes the region, reading its rows straight from the file for BMPs, or asking the image reader for it otherwise
+   */
+  private static BufferedImage readOriginalRegion(Path file, Rectangle region) {
+    try(BmpFile bmp = BmpFile.isBmp(file) ? BmpFile.open(file) : null) {
+      return bmp != null ? bmp.readRegion(region) : ImageUtils.readRegion(file, region);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
+  }
+
+  /**
+   * @return the part of the original a quadri's crop reads: its enclosing rectangle and the interpolation margin around
+   */
+  private static Rectangle cropRegion(Quadri quadri, Size originalSize) {
+    Rect2d enclosingRect = quadri.getEnclosingRectNoRotation();
+    int left = (int) Math.floor(enclosingRect.x) - QuadriWarp.SOURCE_MARGIN;
+    int top = (int) Math.floor(enclosingRect.y) - QuadriWarp.SOURCE_MARGIN;
+    int right = (int) Math.ceil(enclosingRect.x + enclosingRect.width) + QuadriWarp.SOURCE_MARGIN;
+    int bottom = (int) Math.ceil(enclosingRect.y + enclosingRect.height) + QuadriWarp.SOURCE_MARGIN;
+    Rectangle original = new Rectangle(0, 0, (int) originalSize.width, (int) originalSize.height);
+    Rectangle region = new Rectangle(left, top, right - left, bottom - top).intersection(original);
+    return region.isEmpty() ? original : region; // a quadri entirely off the original gets a transparent crop
+  }
 
-    CompletableFuture.allOf(futures).thenRun(() -> {
-      Path doneFile = imageContext.getFile().resolveSibling(PREFIX_DONE + imageContext.getFileName());
+  /**
+   * Leaves out the quadris that can't be warped, their corners having been dragged into a degenerate shape, so they don't
+   * fail the whole page
+   */
+  private static List<Quadri> croppable(List<Quadri> quadris, Path file) {
+    List<Quadri> croppable = new ArrayList<>(quadris.size());
+    for (Quadri quadri : quadris) {
       try {
-        Files.move(croppingFile, doneFile);
-      } catch (IOException e) {
-        log.error("Cannot rename {} to {}", croppingFile, doneFile);
+        new QuadriWarp(quadri);
+        croppable.add(quadri);
+      } catch (IllegalArgumentException e) {
+        log.warn("Skipping quadri {} of {}: {}", quadri.getName(), file, e.getMessage());
       }
-      log.info("Finished cropping: {}", imageContext.getFile());
-    });
+    }
+    return croppable;
+  }
+
+  /**
+   * @return how much of the original the quadris' regions cover altogether, overlaps counted twice
+   */
+  private static double coverage(List<Quadri> quadris, Size originalSize) {
+    double area = 0;
+    for (Quadri quadri : quadris) {
+      Rectangle region = cropRegion(quadri, originalSize);
+      area += (double) region.width * region.height;
+    }
+    return area / (originalSize.width * originalSize.height);
+  }
+
+  /**
+   * What's read of the original, held until every quadri is saved, and the buffer each quadri is cropped into, RGBA at
+   * most. The regions of the quadris that aren't swept are read, and for those that are, one band of a BMP at a time, or
+   * all of the original otherwise.
+   */
+  private static long estimateCropBytes(Path file, Size originalSize, List<Quadri> quadris, boolean[] swept) {
+    List<QuadriWarp> sweptWarps = new ArrayList<>();
+    for (int q = 0; q < quadris.size(); q++) {
+      if(swept[q]) {
+        sweptWarps.add(new QuadriWarp(quadris.get(q)));
+      }
+    }
+    long bytes = 0;
+    if(!sweptWarps.isEmpty()) {
+      double sweptRows = BmpFile.isBmp(file) ? Math.min(originalSize.height, BatchQuadriWarp.windowRows(sweptWarps)) : originalSize.height;
+      bytes += (long) (originalSize.width * sweptRows) * 4;
+    }
+    for (int q = 0; q < quadris.size(); q++) {
+      Quadri quadri = quadris.get(q);
+      if(!swept[q]) {
+        Rectangle region = cropRegion(quadri, originalSize);
+        bytes += (long) region.width * region.height * 4;
+      }
+      QuadriWarp warp = new QuadriWarp(quadri);
+      bytes += (long) warp.getWidth() * warp.getHeight() * 4;
+    }
+    return bytes;
+  }
+
+  private void cutAndSaveQuadri(Path originalFile, Size originalSize, Quadri quadri, Path quadriFile) {
+    Rectangle region = cropRegion(quadri, originalSize);
+    BufferedImage regionImage = readOriginalRegion(originalFile, region);
+    saveQuadri(cutQuadri(regionImage, quadri.translate(-region.x, -region.y)), quadriFile);
   }
 
-  private boolean cutAndSaveQuadri(BufferedImage originalImage, Quadri quadri, Path quadriFile) {
-    BufferedImage quadriImage = cutQuadri(originalImage, quadri);
+  /**
+   * A quadri that can't be saved fails the whole page, so it stays to be cropped again
+   */
+  private void saveQuadri(BufferedImage quadriImage, Path quadriFile) {
     try {
-      return ImageIO.write(quadriImage, QUADRI_EXTENSION, quadriFile.toFile());
+      outputCodec.write(quadriImage, quadriFile);
     } catch (IOException e) {
-      log.error("Cannot save quadri from image: {}", originalImage);
-      return false;
+      log.error("Cannot save quadri: {}", quadriFile, e);
+      throw new UncheckedIOException(e);
     }
   }
 
   private BufferedImage cutQuadri(BufferedImage originalImage, Quadri quadri) {
     log.info("quadri: {}", quadri);
+    return new QuadriWarp(quadri).apply(originalImage, cropExecutor);
+  }
 
-    double quadriAngle;
-    double[] angles = quadri.toAngles();
-    double a0 = angles[0], a1 = angles[1], a2 = angles[2], a3 = angles[3];
-    // trying to find which opposite sides are the most parallel
-    if(Math.abs(a0 - a2) > Math.abs(a1 - a3)) { // sign inverted cause we should be comparing π-abs(...)
-      quadriAngle = a2 - Math.PI; // the base, arbitrarily
-      //log.info("angle base: {}", quadriAngle);
-    } else {
-      quadriAngle = a3 - Math.PI/2.0; // the left side, arbitrarily
-      //log.info("angle left: {}", quadriAngle);
+  /**
+   * Sweeps BMPs band by band, each band read from the file when its turn comes. Other originals are decoded whole: a PNG is
+   * only inflated from its start, so reading each band as a region would inflate it again for every band.
+   */
+  private List<BufferedImage> cutQuadris(Path originalFile, List<Quadri> quadris) {
+    quadris.forEach(quadri -> log.info("quadri: {}", quadri));
+    List<QuadriWarp> warps = quadris.stream().map(QuadriWarp::new).toList();
+    try(BmpFile bmp = BmpFile.isBmp(originalFile) ? BmpFile.open(originalFile) : null) {
+      if(bmp == null) {
+        return BatchQuadriWarp.apply(ImageUtils.read(originalFile), warps, cropExecutor);
+      }
+      return BatchQuadriWarp.apply(bmp.getHeight(), (top, bottom) -> readBand(bmp, top, bottom), warps, cropExecutor);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
-    //angle = angle % (Math.PI/2.0); // we don't know if the angle is a vertical or horizontal one
-    log.info("angle {}", quadriAngle);
-
-    // crop the quadri out of the original image
-    Rect2d enclosingRect = quadri.getEnclosingRectNoRotation(); // contains the outlined pic, possibly slightly rotated, and some chunks on the edges left by skewed borders
-    Rectangle quadriRect = new Rectangle((int)enclosingRect.x, (int)enclosingRect.y, (int)enclosingRect.width, (int)enclosingRect.height);
-    //log.info("enclosing rect: {}", quadriRect);
-    BufferedImage enclosingImage = ImageUtils.createBufferedImage(ImageUtils.COLOR_MODEL_RGBA, quadriRect.width, quadriRect.height);
-
-    // clip so we keep only the pixels from the actual quadri bounds, thus weeding out the chunks on the edges left by skewed borders
-    Graphics g = enclosingImage.getGraphics();
-    Polygon clipShape = quadri.toShape();
-    clipShape.translate(-quadriRect.x, -quadriRect.y);
-    g.setClip(clipShape);
-
-    g.drawImage(originalImage, 0, 0, quadriRect.width -1, quadriRect.height-1,
-        quadriRect.x, quadriRect.y, (quadriRect.x+quadriRect.width)-1, (quadriRect.y+quadriRect.height)-1, null);
-
-    // Now we still need to apply angle and quadri rotation and trim usless pixels
-    // So we're going to rotate around the enclosing rectangle's top-left coordinates
-    // and apply rotated pixels to the actual final picture dimensions (no longer an enclosing one)
-    // after translating so useless pixels are automatically trimmed out
-    Quadri recenteredQuadri = quadri.translate(-enclosingRect.x, -enclosingRect.y);
-    Rect2d enclosingRotated = recenteredQuadri.rotate(quadriAngle, true)
-        .getEnclosingRectNoRotation(); // so we know the final picture dimensions
-    BufferedImage quadriImage = ImageUtils.createBufferedImage(ImageUtils.COLOR_MODEL_RGBA, (int)Math.round(enclosingRotated.width), (int)Math.round(enclosingRotated.height));
+  }
 
-    AffineTransform at = AffineTransform.getRotateInstance(quadriAngle);
-    at.quadrantRotate(quadri.getRotation().getQuadrants());
-    ((Graphics2D) quadriImage.getGraphics()).drawImage(enclosingImage, new AffineTransformOp(at, AffineTransformOp.TYPE_BICUBIC), -(int)Math.round(enclosingRotated.x), -(int)Math.round(enclosingRotated.y));
 
-    return quadriImage;
+  private static BufferedImage readBand(BmpFile bmp, int top, int bottom) {
+    try {
+      return bmp.readRegion(new Rectangle(0, top, bmp.getWidth(), bottom - top));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
+  /**
+   * Deletes what the quadris of a failed page wrote, complete or not: the files were unused when the page was confirmed
+   */
+  private static void deleteQuadriFiles(List<Path> quadriFiles) {
+    for (Path quadriFile : quadriFiles) {
+      try {
+        Files.deleteIfExists(quadriFile);
+      } catch (IOException e) {
+        log.warn("Cannot delete quadri of a failed cropping: {}", quadriFile, e);
+      }
+    }
+  }
 
   private static List<Path> getUnusedImageFiles(Path parent, String prefix, String suffix, int count) {
     return getUnusedImageFiles(parent, prefix, suffix, 1, count);
@@ -198,9 +548,112 @@ public class CutterService {
   }
 
 
+  private static <T> CompletableFuture<T> submit(ExecutorService executor, Callable<T> task) {
+    return submit(executor, task, value -> {});
+  }
+
+  /**
+   * @param discard takes the value computed once the returned future was cancelled, so it can be released
+   */
+  private static <T> CompletableFuture<T> submit(ExecutorService executor, Callable<T> task, Consumer<T> discard) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Future<?> running = executor.submit(() -> {
+      try {
+        T value = task.call();
+        if(!result.complete(value)) {
+          discard.accept(value); // cancelled meanwhile
+        }
+      } catch (Exception e) {
+        result.completeExceptionally(e);
+      }
+    });
+    result.whenComplete((value, failure) -> {
+      if (result.isCancelled()) {
+        running.cancel(true);
+      }
+    });
+    return result;
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + '-' + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private static ForkJoinWorkerThreadFactory daemonWorkers(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return pool -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      thread.setName(name + '-' + count.incrementAndGet());
+      return thread; // already a daemon
+    };
+  }
+
+  /**
+   * The image context is cleaned if the analysis fails or is cancelled
+   */
   public ImageContext analyzeImage(Path path, DetectionParams params) throws IOException {
-    ImageContext currentContext = new ImageContext(path);
-    currentContext.detectOutline(params);
+    ImageContext currentContext = new ImageContext(path, proxyCache);
+    try {
+      detectOutline(currentContext, params, true);
+    } catch (IOException | RuntimeException e) {
+      clean(currentContext);
+      throw e;
+    }
     return currentContext;
   }
+
+  /**
+   * Releases an image context nobody is going to show
+   */
+  public static void clean(ImageContext imageContext) {
+    try {
+      imageContext.clean();
+    } catch (IOException e) {
+      log.error("Cannot clean: {}", imageContext.getFile(), e);
+    }
+  }
+
+  /**
+   * Looks the detection up in the analysis cache first, and keeps it there when it has to run
+   * @param cached whether a detection found in the cache can be used
+   */
+  private void detectOutline(ImageContext imageContext, DetectionParams params, boolean cached) throws IOException {
+    if(analysisCache == null) {
+      imageContext.detectOutline(params);
+      return;
+    }
+    if(imageContext.getFileKey() == null) {
+      imageContext.setFileKey(AnalysisCache.fileKey(imageContext.getFile()));
+    }
+    if(!cached) {
+      analysisCache.deleteEdits(imageContext.getFileKey()); // the operator starts over
+    }
+    AnalysisCache.Entry entry = cached ? analysisCache.get(imageContext.getFileKey(), params) : null;
+    if(entry != null) {
+      log.info("Analysis found in cache: {}", imageContext.getFile());
+      imageContext.restoreOutline(params, entry);
+    } else {
+      imageContext.detectOutline(params);
+      analysisCache.put(imageContext.getFileKey(), params, imageContext.toCacheEntry());
+    }
+  }
+
+  /**
+   * Keeps the quadris as the operator left them in the analysis cache, in the background, so they're there next session.
+   * Untouched ones aren't kept: the edits would shadow the detections of later sessions, whatever their params.
+   */
+  public void remember(ImageContext imageContext) {
+    if(analysisCache == null || imageContext.getFileKey() == null || imageContext.getOutline() == null
+        || !imageContext.isEdited()) {
+      return;
+    }
+    String fileKey = imageContext.getFileKey();
+    AnalysisCache.Entry entry = imageContext.toCacheEntry(); // before the context is cleaned
+    cacheExecutor.execute(() -> analysisCache.putEdits(fileKey, entry));
+  }
 }
@@ -0,0 +1,161 @@
+package org.mars.cutter;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.mars.cutter.domain.Bounds;
+import org.mars.cutter.domain.Edges;
+import org.mars.cutter.domain.HVHoughs;
+import org.mars.cutter.domain.HoughVotes;
+import org.mars.cutter.domain.Outline;
+import org.mars.cutter.util.MatUtils;
+import org.opencv.core.Size;
+
+/**
+ * The {@link RectangleDetector} stages of one image, each one memoized and keyed by its upstream result and the
+ * {@link DetectionParams} fields it depends on, so running it again with new parameters only recomputes the stages
+ * downstream of the change:
+ * <pre>
+ *   decode → gray → gradients    proxy image, tempDimension
+ *   edges                        cannyThreshold, cannyRatio
+ *   lines                        houghTheta, cardinalHough (votes reused while they cover houghThreshold and hvAngleTolerance)
+ *   cardinal filter              houghThreshold, hvAngleTolerance
+ *   rectangles                   -
+ * </pre>
+ * Decode and gray only feed the gradients, so they're released as soon as those are computed. Those being the only
+ * native stages, every memoized result is Java side and no Mat outlives a detection.
+ * <p>
+ * Interrupting the detecting thread, or clearing the pipeline, cancels the detection before the next stage starts.
+ */
+@Slf4j
+public final class DetectionPipeline {
+
+  private record GradientsKey(BufferedImage image, int tempDimension) {}
+  private record EdgesKey(CannyGradients gradients, double cannyThreshold, double cannyRatio) {}
+  private record LinesKey(Edges edges, double houghTheta, boolean cardinalHough) {}
+  private record CardinalKey(HoughVotes houghVotes, int houghThreshold, double hvAngleTolerance) {}
+  private record RectanglesKey(Edges edges, HVHoughs hvHoughs) {}
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final AtomicInteger generation = new AtomicInteger(); // bumped by each clear, cancels the running detection
+  private volatile boolean clearPending;
+  private int running; // generation of the detection holding the lock
+
+  private final Stage<GradientsKey, CannyGradients> gradientsStage = new Stage<>("gradients");
+  private final Stage<EdgesKey, Edges> edgesStage = new Stage<>("edges");
+  private final Stage<LinesKey, HoughVotes> linesStage = new Stage<>("lines");
+  private final Stage<CardinalKey, HVHoughs> cardinalStage = new Stage<>("cardinal filter");
+  private final Stage<RectanglesKey, List<Bounds>> rectanglesStage = new Stage<>("rectangles");
+
+  public Outline detect(Path file, BufferedImage image, DetectionParams params, Size originalSize) {
+    lock.lock();
+    try {
+      if (clearPending) {
+        clearPending = false;
+        clearStages();
+      }
+      running = generation.get();
+      return detectStages(file, image, params, originalSize);
+    } finally {
+      lock.unlock();
+      releaseIfCleared();
+    }
+  }
+
+  private Outline detectStages(Path file, BufferedImage image, DetectionParams params, Size originalSize) {
+    log.info("Identifying on: {}", file);
+
+    CannyGradients gradients = gradientsStage.get(new GradientsKey(image, params.getTempDimension()),
+        () -> RectangleDetector.detectGradients(MatUtils.toMat(image)));
+
+    Edges edges = edgesStage.get(new EdgesKey(gradients, params.getCannyThreshold(), params.getCannyRatio()),
+        () -> RectangleDetector.detectEdges(gradients, params));
+
+    HoughVotes houghVotes = linesStage.get(new LinesKey(edges, params.getHoughTheta(), params.isCardinalHough()),
+        votes -> votes.covers(params.getHoughThreshold(), params.getHvAngleTolerance()),
+        () -> RectangleDetector.voteHoughLines(edges, params));
+
+    HVHoughs hvHoughs = cardinalStage.get(new CardinalKey(houghVotes, params.getHoughThreshold(), params.getHvAngleTolerance()),
+        () -> RectangleDetector.filterCardinal(houghVotes, params));
+
+    List<Bounds> bounds = rectanglesStage.get(new RectanglesKey(edges, hvHoughs),
+        () -> RectangleDetector.findRectangles(edges, hvHoughs));
+
+    return new Outline(file, params, originalSize, edges.edgeMap(), edges.support(), houghVotes, hvHoughs, List.of(), bounds);
+  }
+
+  /**
+   * Cancels the running detection, if any, without waiting for it: the stages are then cleared by whichever of this
+   * thread or the detecting one gets the lock, so the Swing thread never blocks on a detection.
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    clearPending = true;
+    releaseIfCleared();
+  }
+
+  private void releaseIfCleared() {
+    while (clearPending && lock.tryLock()) {
+      try {
+        if (clearPending) {
+          clearPending = false;
+          clearStages();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void clearStages() {
+    gradientsStage.clear();
+    edgesStage.clear();
+    linesStage.clear();
+    cardinalStage.clear();
+    rectanglesStage.clear();
+  }
+
+
+  private final class Stage<K, V> {
+    private final String name;
+    private K key;
+    private V value;
+
+    private Stage(String name) {
+      this.name = name;
+    }
+
+    V get(K key, Supplier<V> compute) {
+      return get(key, v -> true, compute);
+    }
+
+    /**
+     * @param reusable whether the memoized value still fits, on top of having the same key
+     */
+    V get(K key, Predicate<V> reusable, Supplier<V> compute) {
+      if (value != null && key.equals(this.key) && reusable.test(value)) {
+        log.debug("Reusing stage: {}", name);
+      } else {
+        if (Thread.currentThread().isInterrupted() || running != generation.get()) {
+          throw new CancellationException("Detection interrupted before stage: " + name);
+        }
+        log.debug("Computing stage: {}", name);
+        clear();
+        value = compute.get();
+        this.key = key;
+      }
+      return value;
+    }
+
+    void clear() {
+      key = null;
+      value = null;
+    }
+  }
+}
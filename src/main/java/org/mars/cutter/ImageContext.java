@@ -1,24 +1,28 @@
 package org.mars.cutter;
 
-import static org.mars.cutter.util.FileUtils.dotExtension;
-
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.Setter;
 import org.mars.cutter.domain.Bounds;
 import org.mars.cutter.domain.Outline;
 import org.mars.cutter.domain.Segment;
-import org.mars.cutter.util.FileUtils;
+import org.mars.cutter.io.BmpFile;
+import org.mars.cutter.io.ProxyCache;
 import org.mars.cutter.util.ImageUtils;
 import org.opencv.core.Point;
 import org.opencv.core.Size;
@@ -27,25 +31,32 @@ import org.opencv.core.Size;
 @AllArgsConstructor
 public final class ImageContext {
 
-  public static final String TEMP_FORMAT = "bmp";
-  public static final String DESTINATION_FORMAT = "jpg";
+  private static final int PROXY_OVERSAMPLING = 2; // how much bigger than the proxy the original is decoded before scaling
+  private static final int PROXY_BYTES_PER_PIXEL = 16; // proxy image, its drawn copy, gradients, edge map and its support index
 
   public static final List<Color> BOUNDS_COLORS = List.of(Color.yellow, Color.green, Color.blue, Color.red, Color.gray, Color.orange, Color.cyan, Color.magenta, Color.pink, Color.black);
 
 
   private final Path file;
+  private final ProxyCache proxyCache; // null for none
+  private final DetectionPipeline pipeline = new DetectionPipeline();
 
-  private BufferedImage originalImage;
   private Size originalSize;
   private double ratio;
-  private Path tempFile;
   private BufferedImage tempImage;
   private Outline outline;
+  @Setter
+  private String fileKey; // keys the analysis cache, null until hashed
 
   private List<Quadri> quadris;
 
   public ImageContext(Path file) {
+    this(file, null);
+  }
+
+  public ImageContext(Path file, ProxyCache proxyCache) {
     this.file = file;
+    this.proxyCache = proxyCache;
   }
 
 
@@ -53,36 +64,148 @@ public final class ImageContext {
     return file.getFileName().toString();
   }
 
+  /**
+   * @return roughly how many bytes an analyzed context holds: the proxy and the detection stages, the original being dropped
+   */
+  public static long estimateBytes(Dimension originalSize, int tempDimension) {
+    long originalPixels = (long) originalSize.width * originalSize.height;
+    double ratio = Math.min(1.0, (double) tempDimension / Math.max(1, Math.max(originalSize.width, originalSize.height)));
+    long tempPixels = (long) (originalPixels * ratio * ratio);
+    return tempPixels * PROXY_BYTES_PER_PIXEL;
+  }
+
+  /**
+   * Interrupting the calling thread cancels the detection with a {@link CancellationException}
+   */
   public void detectOutline(DetectionParams params) throws IOException {
-    if(tempFile == null) {
-      String[] fileExt = FileUtils.getFileExt(file);
-
-      this.tempFile = Files.createTempFile(null, dotExtension(fileExt[1]));
-      this.originalImage = ImageIO.read(file.toFile());
-      this.originalSize = new Size(originalImage.getWidth(), originalImage.getHeight());
-      this.tempImage = ImageUtils.scaleBigger(originalImage, params.getTempDimension(), params.getTempDimension(), (img, infoflags, x, y, width, height) -> false);
-      ImageIO.write(tempImage, TEMP_FORMAT, tempFile.toFile());
-      this.ratio = (double)tempImage.getWidth() / (double)originalImage.getWidth();
+    if(tempImage == null) {
+      loadProxy(params.getTempDimension());
+      checkInterrupted();
+    }
+    setOutline(analyze(params));
+  }
+
+  /**
+   * Restores a detection found in the analysis cache, along with the quadris as they were left: only the proxy is loaded,
+   * none of the detection stages run
+   */
+  public void restoreOutline(DetectionParams params, AnalysisCache.Entry entry) throws IOException {
+    if(tempImage == null) {
+      loadProxy(params.getTempDimension());
+      checkInterrupted();
+    }
+    this.outline = new Outline(file, params, originalSize, null, null, null, entry.hvHoughs(), List.of(), entry.bounds());
+    this.quadris = new ArrayList<>(entry.quadris());
+  }
+
+  /**
+   * @return the detection and the quadris as they are now, to be kept in the analysis cache
+   */
+  public AnalysisCache.Entry toCacheEntry() {
+    return new AnalysisCache.Entry(outline.hvHoughs(), outline.bounds(), quadris.stream().map(Quadri::clone).toList());
+  }
+
+  /**
+   * Decodes the original subsampled, skipping source pixels while reading so the full raster never is, down to no less
+   * than {@value #PROXY_OVERSAMPLING} times the proxy size. The proxy is then scaled from that like it was from the
+   * original. BMPs are read row by row straight from the file when possible.
+   * <p>
+   * The proxy cache is looked up first, and gets the proxy once it's built.
+   */
+  private void loadProxy(int tempDimension) throws IOException {
+    ProxyCache.Proxy cached = proxyCache != null ? proxyCache.get(file, tempDimension) : null;
+    if(cached != null) {
+      setProxy(cached.image(), cached.originalSize().width, cached.originalSize().height);
+      return;
+    }
+
+    int width, height;
+    BufferedImage subsampledImage;
+    try(BmpFile bmp = BmpFile.isBmp(file) ? BmpFile.open(file) : null) {
+      if(bmp != null) {
+        width = bmp.getWidth();
+        height = bmp.getHeight();
+        subsampledImage = bmp.readSubsampled(subsampling(width, height, tempDimension));
+      } else {
+        try(ImageInputStream stream = ImageIO.createImageInputStream(file.toFile())) {
+          ImageReader reader = ImageUtils.getReader(stream, file);
+          try {
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+            int subsampling = subsampling(width, height, tempDimension);
+            ImageReadParam readParam = reader.getDefaultReadParam();
+            readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            subsampledImage = reader.read(0, readParam);
+          } finally {
+            reader.dispose();
+          }
+        }
+      }
+    }
+    checkInterrupted();
+
+    setProxy(ImageUtils.scaleBigger(subsampledImage, tempDimension, tempDimension, (img, infoflags, x, y, w, h) -> false), width, height);
+    if(proxyCache != null) {
+      proxyCache.put(file, tempDimension, new ProxyCache.Proxy(tempImage, new Dimension(width, height)));
     }
-    this.outline = RectangleDetector.detectOutline(tempFile, params, originalSize);
+  }
+
+  private void setProxy(BufferedImage tempImage, int originalWidth, int originalHeight) {
+    this.originalSize = new Size(originalWidth, originalHeight);
+    this.tempImage = tempImage;
+    this.ratio = (double)tempImage.getWidth() / (double)originalWidth;
+  }
+
+  private static int subsampling(int width, int height, int tempDimension) {
+    return Math.max(1, Math.max(width, height) / (tempDimension * PROXY_OVERSAMPLING));
+  }
+
+  private void checkInterrupted() {
+    if(Thread.currentThread().isInterrupted()) {
+      throw new CancellationException("Analysis interrupted: " + file);
+    }
+  }
+
+  /**
+   * Runs the detection without touching this context, so it can happen off the Swing thread
+   */
+  public Outline analyze(DetectionParams params) {
+    return pipeline.detect(file, tempImage, params, originalSize);
+  }
+
+  /**
+   * @return whether the quadris are no longer the ones the detection found: moved, turned, added or removed
+   */
+  public boolean isEdited() {
+    List<Quadri> detected = computeQuadris(outline.bounds());
+    if(detected.size() != quadris.size()) {
+      return true;
+    }
+    for (int i = 0; i < detected.size(); i++) {
+      Quadri quadri = quadris.get(i);
+      if(!quadri.toPoints().equals(detected.get(i).toPoints()) || quadri.getRotation() != detected.get(i).getRotation()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void setOutline(Outline outline) {
+    this.outline = outline;
     this.quadris = computeQuadris(outline.bounds());
   }
 
   public void clean() throws IOException {
-    if(tempFile != null) {
-      Files.delete(tempFile);
-      tempFile = null;
-    }
+    pipeline.clear();
     tempImage = null;
-    originalImage = null;
     originalSize = null;
     ratio = 0;
     outline = null;
     quadris = null;
   }
 
-  public BufferedImage drawImage() throws IOException {
-    BufferedImage image = ImageIO.read(tempFile.toFile());
+  public BufferedImage drawImage() {
+    BufferedImage image = ImageUtils.copy(tempImage);
     drawQuadris(image, quadris);
     return image;
   }
@@ -1,18 +1,23 @@
 package org.mars.cutter;
 
+import java.awt.image.BufferedImage;
 import java.awt.image.RescaleOp;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import lombok.extern.slf4j.Slf4j;
 import nu.pattern.OpenCV;
 import org.mars.cutter.domain.Bounds;
+import org.mars.cutter.domain.EdgeMap;
+import org.mars.cutter.domain.EdgeSupportIndex;
+import org.mars.cutter.domain.Edges;
 import org.mars.cutter.domain.HVHoughs;
 import org.mars.cutter.domain.Hough;
 import org.mars.cutter.domain.HoughFlock;
+import org.mars.cutter.domain.HoughVotes;
 import org.mars.cutter.domain.Outline;
+import org.mars.cutter.util.MatUtils;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
@@ -31,7 +36,6 @@ import org.opencv.imgproc.Imgproc;
 public class RectangleDetector {
 
   public static final int PIXEL_THRESHOLD_RATIO = 10;
-  protected static final double[] CANNY_BLACK = {0.0, 0.0, 0.0};
   public static final Comparator<Hough> RHO_COMPARATOR = Comparator.comparing(Hough::getRho);
   public static final RescaleOp CONTRAST_ADJUSTMENT = new RescaleOp(1.f, 0.1f, null);
 
@@ -41,9 +45,36 @@ public class RectangleDetector {
     //System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
   }
 
+  /**
+   * For callers that have nothing but a file, otherwise prefer {@link #detectOutline(Path, BufferedImage, DetectionParams, Size)}
+   */
   public static Outline detectOutline(Path file, DetectionParams params, Size originalSize) {
     log.info("Identifying on: {}", file);
-    Mat image = Imgcodecs.imread(file.toString());
+    return detectOutline(file, Imgcodecs.imread(file.toString()), params, originalSize);
+  }
+
+  /**
+   * One-shot detection, see {@link DetectionPipeline} to run it again with other parameters
+   */
+  public static Outline detectOutline(Path file, BufferedImage image, DetectionParams params, Size originalSize) {
+    log.info("Identifying on: {} (in memory)", file);
+    return detectOutline(file, MatUtils.toMat(image), params, originalSize);
+  }
+
+  public static Outline detectOutline(Path file, Mat image, DetectionParams params, Size originalSize) {
+    CannyGradients gradients = detectGradients(image);
+    Edges edges = detectEdges(gradients, params);
+    HoughVotes houghVotes = voteHoughLines(edges, params);
+    HVHoughs hvHoughs = filterCardinal(houghVotes, params);
+    List<Bounds> bounds = findRectangles(edges, hvHoughs);
+    return new Outline(file, params, originalSize, edges.edgeMap(), edges.support(), houghVotes, hvHoughs, List.of(), bounds);
+  }
+
+  /**
+   * Gray conversion, Sobel gradients and non-maximum suppression: the threshold independent part of Canny.
+   * The image is released.
+   */
+  public static CannyGradients detectGradients(Mat image) {
     log.debug("Size: {}", image.size());
     log.debug("Empty: {}", image.empty());
     log.debug("Channels: {}", image.channels());
@@ -51,30 +82,63 @@ public class RectangleDetector {
     log.debug("Total: {}", image.total());
 
     //Converting the image to Gray
-    Mat grayMat = new Mat();
-    Imgproc.cvtColor(image, grayMat, Imgproc.COLOR_RGB2GRAY);
+    Mat grayMat;
+    if(image.channels() == 1) {
+      grayMat = image;
+    } else {
+      grayMat = new Mat();
+      Imgproc.cvtColor(image, grayMat, Imgproc.COLOR_RGB2GRAY);
+      image.release();
+    }
 
     // Detecting corners
     List<Point> corners = List.of(); // findCorners(grayMat, 0.1);
 
-    //Detecting the edges
-    Mat edgesMat = new Mat();
-    Imgproc.Canny(grayMat, edgesMat, params.getCannyThreshold(), params.cannyThreshold2(), 3, true);
-
-    // Changing the color of the canny
-    Mat cannyMat = new Mat();
-    Imgproc.cvtColor(edgesMat, cannyMat, Imgproc.COLOR_GRAY2RGB);
+    CannyGradients gradients = CannyGradients.of(grayMat);
+    grayMat.release();
+    return gradients;
+  }
 
-    //Detecting the hough lines from (canny)
-    Mat linesMat = new Mat();
-    Imgproc.HoughLines(edgesMat, linesMat, 1, params.getHoughTheta(), params.getHoughThreshold());
+  /**
+   * The hysteresis part of Canny
+   */
+  public static Edges detectEdges(CannyGradients gradients, DetectionParams params) {
+    EdgeMap edgeMap = gradients.hysteresis(params.getCannyThreshold(), params.cannyThreshold2());
+    return new Edges(edgeMap, new EdgeSupportIndex(edgeMap));
+  }
 
-    // filter horizontal/vertical lines
-    HVHoughs hvHoughs = filterCardinal(linesMat, params.getHvAngleTolerance());
-    hvHoughs.forEach(hough -> log.debug(hough.toString()));
+  /**
+   * Votes once with a low threshold, any threshold above it is then a matter of filtering the votes.
+   * A local maximum of the accumulator doesn't depend on the threshold, so the filtered lines are the very same
+   * a Hough transform run with that threshold would have found.
+   */
+  public static HoughVotes voteHoughLines(Edges edges, DetectionParams params) {
+    int floor = Math.min(DetectionParams.HOUGH_THRESHOLD_FLOOR, params.getHoughThreshold());
+    if(params.isCardinalHough()) {
+      return CardinalHough.vote(edges.edgeMap(), params.getHoughTheta(), floor, params.getHvAngleTolerance());
+    } else {
+      Mat edgesMat = edges.edgeMap().toMat(); // only OpenCV's transform needs the edges native side
+      Mat linesMat = new Mat();
+      Imgproc.HoughLinesWithAccumulator(edgesMat, linesMat, 1, params.getHoughTheta(), floor);
+      HoughVotes houghVotes = toHoughVotes(linesMat, floor);
+      linesMat.release();
+      edgesMat.release();
+      return houghVotes;
+    }
+  }
 
-    List<Bounds> bounds = findRectangles(cannyMat, hvHoughs);
-    return new Outline(file, params, originalSize, cannyMat, hvHoughs, List.of(), bounds);
+  private static HoughVotes toHoughVotes(Mat linesMat, int threshold) {
+    int count = linesMat.rows();
+    float[] rhos = new float[count];
+    float[] thetas = new float[count];
+    int[] votes = new int[count];
+    for (int i = 0; i < count; i++) {
+      double[] data = linesMat.get(i, 0);
+      rhos[i] = (float) data[0];
+      thetas[i] = (float) data[1];
+      votes[i] = (int) data[2];
+    }
+    return new HoughVotes(rhos, thetas, votes, threshold, Hough.HALF_PI);
   }
 
   private static List<Point> findCorners(Mat grayMat, double thresholdRatio) {
@@ -106,19 +170,26 @@ public class RectangleDetector {
     return corners;
   }
 
-  private static HVHoughs filterCardinal(Mat lines, double angleTolerance) {
+  /**
+   * Keeps the horizontal/vertical lines above the Hough threshold
+   */
+  public static HVHoughs filterCardinal(HoughVotes houghVotes, DetectionParams params) {
+    HVHoughs hvHoughs = filterCardinal(houghVotes.lines(params.getHoughThreshold()), params.getHvAngleTolerance());
+    hvHoughs.forEach(hough -> log.debug(hough.toString()));
+    return hvHoughs;
+  }
+
+  private static HVHoughs filterCardinal(List<Hough> lines, double angleTolerance) {
     double tolerance = Math.abs(Math.sin(angleTolerance));
     var verticalLines = new ArrayList<Hough>(20);
     var horizontalLines = new ArrayList<Hough>(20);
 
-    for (int i = 0; i < lines.rows(); i++) {
-      double[] data = lines.get(i, 0);
-      double rho = data[0];
-      double theta = data[1];
+    for (Hough line : lines) {
+      double theta = line.getTheta();
       if (Math.abs(Math.cos(theta)) < tolerance) {
-        horizontalLines.add(new Hough(rho, theta));
+        horizontalLines.add(line);
       } else if(Math.sin(theta) < tolerance) {
-        verticalLines.add(new Hough(rho, theta));
+        verticalLines.add(line);
       }
     }
 
@@ -127,13 +198,14 @@ public class RectangleDetector {
     return new HVHoughs(horizontalLines, verticalLines);
   }
 
-  private static List<Bounds> findRectangles(Mat cannyMat, HVHoughs hvHoughs) {
+  public static List<Bounds> findRectangles(Edges detectedEdges, HVHoughs hvHoughs) {
+    EdgeSupportIndex edges = detectedEdges.support();
     List<Bounds> bounds = new ArrayList<>();
 
     // giving preference to horizontal lines, grouping lines that are very close
     // so different horizontal flocks should be close to one photo boundary or the junction of 2 adjacent photos
-    int height = cannyMat.rows();
-    int width = cannyMat.cols();
+    int height = edges.getHeight();
+    int width = edges.getWidth();
     List<HoughFlock> h1Flocks = splitBands(hvHoughs.horizontals(), height);
 
     // Now that the pic is split in horizontal bands
@@ -145,7 +217,7 @@ public class RectangleDetector {
         Hough photoTopApprox = prevH1Flock.getLast(), photoBottomApprox = curH1Flock.getFirst();
         // now, which vertical lines have pixels on this interval ?
         double photoTopApproxY = photoTopApprox.getY0(), photoBottomApproxY = photoBottomApprox.getY0();
-        List<Hough> eligibleVLines = filterVerticalLinesWithPixels(cannyMat, hvHoughs.verticals(), photoTopApproxY, photoBottomApproxY);
+        List<Hough> eligibleVLines = filterVerticalLinesWithPixels(edges, hvHoughs.verticals(), photoTopApproxY, photoBottomApproxY);
 
         // and out of those, let's split in vertical bands this time
         HoughFlock prevV1Flock = null;
@@ -166,7 +238,7 @@ public class RectangleDetector {
             }).toList();
             double photoLeftX = photoLeft.getX0();
             double photoRightX = photoRight.getX0();
-            List<Hough> eligibleHLines = filterHorizontalLinesWithPixels(cannyMat, boundedHLines, photoLeftX, photoRightX);
+            List<Hough> eligibleHLines = filterHorizontalLinesWithPixels(edges, boundedHLines, photoLeftX, photoRightX);
             HoughFlock prevH2Flock = null;
             for (HoughFlock curH2Flock : splitBands(eligibleHLines, height)) {
               if (prevH2Flock != null) {
@@ -216,11 +288,12 @@ public class RectangleDetector {
     return result;
   }
 
-  private static List<Hough> filterVerticalLinesWithPixels(Mat canny, List<Hough> verticalLines, double topY, double bottomY) {
+  private static List<Hough> filterVerticalLinesWithPixels(EdgeSupportIndex edges, List<Hough> verticalLines, double topY, double bottomY) {
+    log.debug("Finding pixels on y: [{}, {}] on vertical lines", topY, bottomY);
     return verticalLines.stream()
         .filter(vLine -> {
-          int litPixels = countVerticalLitPixels(canny, vLine, topY, bottomY);
-          if (litPixels >= canny.height() / PIXEL_THRESHOLD_RATIO) {
+          int litPixels = edges.countVertical(vLine, topY, bottomY);
+          if (litPixels >= edges.getHeight() / PIXEL_THRESHOLD_RATIO) {
             log.debug("Lit pixels on vertical line {}: {}", vLine, litPixels);
             return true;
           } else {
@@ -229,26 +302,12 @@ public class RectangleDetector {
         }).toList();
   }
 
-  private static int countVerticalLitPixels(Mat canny, Hough vLine, double topY, double bottomY) {
-    int pixels = 0;
-    double p0x = vLine.getX0();
-    double p0y = vLine.getY0();
-    double gradient = Math.tan(vLine.getTheta());
-    log.debug("Finding pixels on y: [{}, {}] on vertical line {}", topY, bottomY, vLine);
-    for (double y = topY; y <= bottomY; y++) {
-      double x = p0x + (p0y - y) * gradient;
-      if (!isBlack(canny, (int) Math.round(x), (int) Math.round(y))) {
-        pixels++;
-      }
-    }
-    return pixels;
-  }
-
-  private static List<Hough> filterHorizontalLinesWithPixels(Mat canny, List<Hough> horizontalLines, double leftX, double rightX) {
+  private static List<Hough> filterHorizontalLinesWithPixels(EdgeSupportIndex edges, List<Hough> horizontalLines, double leftX, double rightX) {
+    log.debug("Finding pixels on x: [{}, {}] on horizontal lines", leftX, rightX);
     return horizontalLines.stream()
         .filter(hLine -> {
-          int litPixels = countHorizontalLitPixels(canny, hLine, leftX, rightX);
-          if (litPixels >= canny.width() / PIXEL_THRESHOLD_RATIO) {
+          int litPixels = edges.countHorizontal(hLine, leftX, rightX);
+          if (litPixels >= edges.getWidth() / PIXEL_THRESHOLD_RATIO) {
             log.debug("Lit pixels on horizontal line {}: {}", hLine, litPixels);
             return true;
           } else {
@@ -257,29 +316,6 @@ public class RectangleDetector {
         }).toList();
   }
 
-  private static int countHorizontalLitPixels(Mat canny, Hough hLine, double leftX, double rightX) {
-    int pixels = 0;
-    double p0x = hLine.getX0();
-    double p0y = hLine.getY0();
-    double theta = hLine.getTheta();
-    double gradient = Math.cos(theta) / Math.sin(theta); // NOT 1/tan cause tan(π/2) → ∞
-    log.debug("Finding pixels on x: [{}, {}] on horizontal line {}", leftX, rightX, hLine);
-    for (double x = leftX; x <= rightX; x++) {
-      double y = p0y + (p0x - x) * gradient;
-      int px = (int) Math.round(x);
-      int py = (int) Math.round(y);
-      if (px >= 0 && py >+ 0 && !isBlack(canny, px, py)) {
-        pixels++;
-      }
-    }
-    return pixels;
-  }
-
-  public static boolean isBlack(Mat canny, int x, int y) {
-    double[] doubles = canny.get(y, x);
-    return Arrays.equals(doubles, CANNY_BLACK);
-  }
-
   public static Hough getLeftest(HoughFlock flock, double minY, double maxY) {
     double avgY = (minY + maxY)/2;
     return flock.stream().min(Comparator.comparing(h -> h.getX(avgY))).orElse(null);
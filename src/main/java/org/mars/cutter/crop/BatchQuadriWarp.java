@@ -0,0 +1,136 @@
+package org.mars.cutter.crop;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import org.mars.cutter.crop.QuadriWarp.ScanlineTiles;
+
+/**
+ * Crops all the quadris of a page in a single sweep of the source, top to bottom in bands of {@value #BAND_ROWS} rows.
+ * Each band renders the scanlines of every quadri starting in it, so the source rows are read while they're still hot
+ * rather than once per quadri.
+ * <p>
+ * The source may be read band by band as well, each band then only reading the rows its scanlines reach: the working set
+ * is the outputs and one band of the source, no more than {@link #windowRows(List)} rows.
+ * <p>
+ * A {@link QuadriWarp#isColumnScan() column scanned} warp writes each of its scanlines down a column of its output, so
+ * every band touches all the rows of that output: such warps gain nothing from the sweep and are better cropped on their
+ * own.
+ */
+public final class BatchQuadriWarp {
+
+  public static final int BAND_ROWS = 64;
+
+  /**
+   * Reads a band of the source
+   */
+  @FunctionalInterface
+  public interface RowReader {
+    /**
+     * @return the rows [top, bottom) of the source, all its width
+     */
+    BufferedImage read(int top, int bottom);
+  }
+
+  /**
+   * Consecutive scanlines of one quadri, all starting in the same band, and the source rows [top, bottom) they read
+   */
+  private record Run(int warp, int from, int to, int top, int bottom) {}
+
+  private BatchQuadriWarp() {}
+
+  public static List<BufferedImage> apply(BufferedImage sourceImage, List<QuadriWarp> warps) {
+    return apply(sourceImage, warps, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * @param pool renders the scanlines of a band in parallel
+   * @return the crops, in the order of the warps
+   */
+  public static List<BufferedImage> apply(BufferedImage sourceImage, List<QuadriWarp> warps, ForkJoinPool pool) {
+    PixelSource source = PixelSource.of(sourceImage);
+    return sweep(source.getHeight(), (top, bottom) -> source, warps, pool);
+  }
+
+  /**
+   * Reads the source one band at a time, the former band being dropped before the next one is read
+   * @param pool renders the scanlines of a band in parallel
+   * @return the crops, in the order of the warps
+   */
+  public static List<BufferedImage> apply(int sourceHeight, RowReader rows, List<QuadriWarp> warps, ForkJoinPool pool) {
+    return sweep(sourceHeight, (top, bottom) -> PixelSource.ofRows(rows.read(top, bottom), top, sourceHeight), warps, pool);
+  }
+
+  /**
+   * @return the most source rows a band reads: its own and how far down the scanlines starting in it reach
+   */
+  public static int windowRows(List<QuadriWarp> warps) {
+    int reach = 0;
+    for (QuadriWarp warp : warps) {
+      for (int i = 0; i < warp.scanlines(); i++) {
+        reach = Math.max(reach, warp.scanlineBottom(i) - warp.scanlineTop(i));
+      }
+    }
+    return BAND_ROWS + reach;
+  }
+
+  private interface Window {
+    PixelSource rows(int top, int bottom);
+  }
+
+  private static List<BufferedImage> sweep(int sourceHeight, Window window, List<QuadriWarp> warps, ForkJoinPool pool) {
+    int bandCount = Math.max(1, (sourceHeight + BAND_ROWS - 1) / BAND_ROWS);
+    List<List<Run>> bands = new ArrayList<>(bandCount);
+    for (int b = 0; b < bandCount; b++) {
+      bands.add(new ArrayList<>());
+    }
+    for (int w = 0; w < warps.size(); w++) {
+      QuadriWarp warp = warps.get(w);
+      int from = 0, band = -1, top = Integer.MAX_VALUE, bottom = Integer.MIN_VALUE;
+      for (int i = 0; i < warp.scanlines(); i++) {
+        int scanlineTop = warp.scanlineTop(i);
+        int scanlineBand = Math.clamp(Math.floorDiv(scanlineTop, BAND_ROWS), 0, bandCount - 1);
+        if (scanlineBand != band) {
+          if (i > from) {
+            bands.get(band).add(new Run(w, from, i, top, bottom));
+          }
+          from = i;
+          band = scanlineBand;
+          top = Integer.MAX_VALUE;
+          bottom = Integer.MIN_VALUE;
+        }
+        top = Math.min(top, scanlineTop);
+        bottom = Math.max(bottom, warp.scanlineBottom(i));
+      }
+      if (warp.scanlines() > from && band >= 0) {
+        bands.get(band).add(new Run(w, from, warp.scanlines(), top, bottom));
+      }
+    }
+
+    List<BufferedImage> outputs = null;
+    for (List<Run> runs : bands) {
+      if (runs.isEmpty()) {
+        continue;
+      }
+      // the rows the runs read, clamped to the source and at least one, those of a quadri off the source reading none
+      int top = Math.clamp(runs.stream().mapToInt(Run::top).min().getAsInt(), 0, sourceHeight - 1);
+      int bottom = Math.clamp(runs.stream().mapToInt(Run::bottom).max().getAsInt(), top + 1, sourceHeight);
+      PixelSource source = window.rows(top, bottom);
+      if (outputs == null) {
+        outputs = new ArrayList<>(warps.size());
+        for (QuadriWarp warp : warps) {
+          outputs.add(warp.createOutput(source));
+        }
+      }
+
+      List<BufferedImage> bandOutputs = outputs;
+      List<ScanlineTiles> tiles = runs.stream()
+          .map(run -> new ScanlineTiles(warps.get(run.warp()), source, bandOutputs.get(run.warp()), run.from(), run.to()))
+          .toList();
+      pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tiles)));
+    }
+    return outputs != null ? outputs : List.of();
+  }
+}
@@ -0,0 +1,114 @@
+package org.mars.cutter.crop;
+
+/**
+ * Bicubic convolution (a = -0.5, like Java2D's) over a {@link PixelSource}, the border pixels being repeated outwards.
+ * The kernel weights come from a table of {@value #PHASES} sub-pixel phases rather than being computed for each sample.
+ * Keeps its own scratch arrays so sampling doesn't allocate: one instance per thread.
+ */
+final class BicubicSampler {
+
+  private static final double A = -0.5;
+  static final int PHASES = 1024;
+  private static final double[] WEIGHTS = new double[(PHASES + 1) * 4]; // 4 taps per phase, phase PHASES being t = 1
+
+  static {
+    double[] w = new double[4];
+    for (int phase = 0; phase <= PHASES; phase++) {
+      weights((double) phase / PHASES, w);
+      System.arraycopy(w, 0, WEIGHTS, phase * 4, 4);
+    }
+  }
+
+  private final byte[] data;
+  private final int width;
+  private final int height;
+  private final int base;
+  private final int pixelStride;
+  private final int scanlineStride;
+  private final int redOffset;
+  private final int greenOffset;
+  private final int blueOffset;
+  private final int alphaOffset;
+
+  private final int[] columns = new int[4];
+
+  BicubicSampler(PixelSource source) {
+    this.data = source.getData();
+    this.width = source.getWidth();
+    this.height = source.getHeight();
+    this.base = source.offset(0, 0);
+    this.pixelStride = source.getPixelStride();
+    this.scanlineStride = source.getScanlineStride();
+    this.redOffset = source.getRedOffset();
+    this.greenOffset = source.getGreenOffset();
+    this.blueOffset = source.getBlueOffset();
+    this.alphaOffset = source.getAlphaOffset();
+  }
+
+  /**
+   * @param x y pixel grid coordinates, pixel centers being on integers
+   * @param rgba receives the red, green, blue and alpha samples, alpha being 255 when the source has none
+   */
+  void sample(double x, double y, int[] rgba) {
+    int ix = (int) Math.floor(x);
+    int iy = (int) Math.floor(y);
+    int wx = (int) ((x - ix) * PHASES + 0.5) * 4;
+    int wy = (int) ((y - iy) * PHASES + 0.5) * 4;
+
+    for (int i = 0; i < 4; i++) {
+      columns[i] = clamp(ix - 1 + i, width) * pixelStride;
+    }
+
+    double r = 0, g = 0, b = 0, a = 0;
+    for (int j = 0; j < 4; j++) {
+      int row = base + clamp(iy - 1 + j, height) * scanlineStride;
+      double rowR = 0, rowG = 0, rowB = 0, rowA = 0;
+      for (int i = 0; i < 4; i++) {
+        int p = row + columns[i];
+        double w = WEIGHTS[wx + i];
+        rowR += w * (data[p + redOffset] & 0xff);
+        rowG += w * (data[p + greenOffset] & 0xff);
+        rowB += w * (data[p + blueOffset] & 0xff);
+        if (alphaOffset >= 0) {
+          rowA += w * (data[p + alphaOffset] & 0xff);
+        }
+      }
+      double w = WEIGHTS[wy + j];
+      r += w * rowR;
+      g += w * rowG;
+      b += w * rowB;
+      a += w * rowA;
+    }
+
+    rgba[0] = toByte(r);
+    rgba[1] = toByte(g);
+    rgba[2] = toByte(b);
+    rgba[3] = alphaOffset >= 0 ? toByte(a) : 255;
+  }
+
+  /**
+   * Weights of the 4 taps around a sample, at distance 1 + t, t, 1 - t and 2 - t from it
+   */
+  static void weights(double t, double[] w) {
+    w[0] = outer(1 + t);
+    w[1] = inner(t);
+    w[2] = inner(1 - t);
+    w[3] = outer(2 - t);
+  }
+
+  private static double inner(double d) { // 0 <= d <= 1
+    return ((A + 2) * d - (A + 3)) * d * d + 1;
+  }
+
+  private static double outer(double d) { // 1 <= d <= 2
+    return ((A * d - 5 * A) * d + 8 * A) * d - 4 * A;
+  }
+
+  private static int clamp(int i, int size) {
+    return i < 0 ? 0 : i >= size ? size - 1 : i;
+  }
+
+  private static int toByte(double v) {
+    return v <= 0 ? 0 : v >= 255 ? 255 : (int) (v + 0.5);
+  }
+}
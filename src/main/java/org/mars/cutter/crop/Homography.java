@@ -0,0 +1,84 @@
+package org.mars.cutter.crop;
+
+import org.opencv.core.Point;
+
+/**
+ * Perspective transform: (x, y) → ((a·x + b·y + c) / (g·x + h·y + 1), (d·x + e·y + f) / (g·x + h·y + 1))
+ */
+public final class Homography {
+
+  private final double a, b, c;
+  private final double d, e, f;
+  private final double g, h;
+
+  private Homography(double a, double b, double c, double d, double e, double f, double g, double h) {
+    this.a = a;
+    this.b = b;
+    this.c = c;
+    this.d = d;
+    this.e = e;
+    this.f = f;
+    this.g = g;
+    this.h = h;
+  }
+
+  /**
+   * Maps the (0, 0), (width, 0), (width, height), (0, height) rectangle corners onto q0, q1, q2, q3 (Heckbert's closed form)
+   */
+  public static Homography rectToQuad(double width, double height, Point q0, Point q1, Point q2, Point q3) {
+    double sx = q0.x - q1.x + q2.x - q3.x;
+    double sy = q0.y - q1.y + q2.y - q3.y;
+    double dx1 = q1.x - q2.x, dx2 = q3.x - q2.x;
+    double dy1 = q1.y - q2.y, dy2 = q3.y - q2.y;
+
+    double g = 0, h = 0;
+    if (sx != 0 || sy != 0) { // not a parallelogram
+      double den = dx1 * dy2 - dx2 * dy1;
+      if (den == 0) {
+        throw new IllegalArgumentException("Degenerate quadrilateral: " + q0 + ", " + q1 + ", " + q2 + ", " + q3);
+      }
+      g = (sx * dy2 - dx2 * sy) / den;
+      h = (dx1 * sy - sx * dy1) / den;
+    }
+
+    // unit square to quad, then scaled down from the rectangle
+    return new Homography(
+        (q1.x - q0.x + g * q1.x) / width, (q3.x - q0.x + h * q3.x) / height, q0.x,
+        (q1.y - q0.y + g * q1.y) / width, (q3.y - q0.y + h * q3.y) / height, q0.y,
+        g / width, h / height);
+  }
+
+  /**
+   * @return whether the point maps on the same side of the horizon as the origin, i.e. with a positive denominator
+   */
+  public boolean isInFront(double x, double y) {
+    return g * x + h * y + 1 > 0;
+  }
+
+  public double mapX(double x, double y) {
+    return (a * x + b * y + c) / (g * x + h * y + 1);
+  }
+
+  public double mapY(double x, double y) {
+    return (d * x + e * y + f) / (g * x + h * y + 1);
+  }
+
+  /**
+   * Maps a line of evenly spaced points, (x0, y0), (x0 + dx, y0 + dy)..., incrementally
+   * @param xs receives the mapped x coordinates, its length being the number of points
+   * @param ys receives the mapped y coordinates
+   */
+  public void mapLine(double x0, double y0, double dx, double dy, double[] xs, double[] ys) {
+    double nx = a * x0 + b * y0 + c;
+    double ny = d * x0 + e * y0 + f;
+    double w = g * x0 + h * y0 + 1;
+    double stepX = a * dx + b * dy, stepY = d * dx + e * dy, stepW = g * dx + h * dy;
+    for (int i = 0; i < xs.length; i++) {
+      xs[i] = nx / w;
+      ys[i] = ny / w;
+      nx += stepX;
+      ny += stepY;
+      w += stepW;
+    }
+  }
+}
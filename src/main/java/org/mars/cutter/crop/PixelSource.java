@@ -0,0 +1,106 @@
+package org.mars.cutter.crop;
+
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import lombok.Getter;
+
+/**
+ * Direct access to the bytes of an 8 bits per sample interleaved image, gray or RGB with an optional alpha.
+ * Any other kind of image is converted to one once.
+ * <p>
+ * The image may also be a band of rows of a taller source, its pixels are then addressed in the coordinates of the whole
+ * source: only the rows of the band can be read, the width and height are the source's.
+ */
+@Getter
+final class PixelSource {
+
+  private final byte[] data;
+  private final int width;
+  private final int height;
+  private final int base; // offset of pixel (0, 0)
+  private final int pixelStride;
+  private final int scanlineStride;
+  private final int redOffset;
+  private final int greenOffset;
+  private final int blueOffset;
+  private final int alphaOffset; // -1 without alpha
+  private final boolean gray;
+
+  private PixelSource(BufferedImage image, int top, int height) {
+    Raster raster = image.getRaster();
+    DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+    PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+    int[] bandOffsets = sampleModel.getBandOffsets();
+
+    this.data = buffer.getData();
+    this.width = raster.getWidth();
+    this.height = height;
+    this.pixelStride = sampleModel.getPixelStride();
+    this.scanlineStride = sampleModel.getScanlineStride();
+    this.base = buffer.getOffset()
+        - (raster.getSampleModelTranslateY() + top) * scanlineStride
+        - raster.getSampleModelTranslateX() * pixelStride;
+
+    ColorModel colorModel = image.getColorModel();
+    this.gray = colorModel.getNumColorComponents() == 1;
+    this.redOffset = bandOffsets[0];
+    this.greenOffset = gray ? bandOffsets[0] : bandOffsets[1];
+    this.blueOffset = gray ? bandOffsets[0] : bandOffsets[2];
+    this.alphaOffset = colorModel.hasAlpha() ? bandOffsets[colorModel.getNumColorComponents()] : -1;
+  }
+
+  static PixelSource of(BufferedImage image) {
+    return new PixelSource(readable(image), 0, image.getHeight());
+  }
+
+  /**
+   * @param band rows [top, top + band height) of the source, all its width
+   */
+  static PixelSource ofRows(BufferedImage band, int top, int sourceHeight) {
+    return new PixelSource(readable(band), top, sourceHeight);
+  }
+
+  private static BufferedImage readable(BufferedImage image) {
+    if (!isDirectlyReadable(image)) {
+      BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+          image.getColorModel().hasAlpha() ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR);
+      Graphics2D g = converted.createGraphics();
+      g.drawImage(image, 0, 0, null);
+      g.dispose();
+      image = converted;
+    }
+    return image;
+  }
+
+  private static boolean isDirectlyReadable(BufferedImage image) {
+    ColorModel colorModel = image.getColorModel();
+    Raster raster = image.getRaster();
+    if (!(colorModel instanceof ComponentColorModel)
+        || colorModel.isAlphaPremultiplied()
+        || !(raster.getDataBuffer() instanceof DataBufferByte)
+        || !(raster.getSampleModel() instanceof PixelInterleavedSampleModel)) {
+      return false;
+    }
+    for (int bits : colorModel.getComponentSize()) {
+      if (bits != 8) {
+        return false;
+      }
+    }
+    ColorSpace colorSpace = colorModel.getColorSpace();
+    return colorSpace.isCS_sRGB() || colorSpace.getType() == ColorSpace.TYPE_GRAY && colorModel.getNumColorComponents() == 1;
+  }
+
+  int offset(int x, int y) {
+    return base + y * scanlineStride + x * pixelStride;
+  }
+
+  boolean hasAlpha() {
+    return alphaOffset >= 0;
+  }
+}
@@ -0,0 +1,283 @@
+package org.mars.cutter.crop;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import lombok.Getter;
+import org.mars.cutter.Quadri;
+import org.mars.cutter.util.ImageUtils;
+import org.opencv.core.Point;
+
+/**
+ * Crops a quadri out of an image in a single pass: each output pixel is mapped straight back into the quadri by the
+ * perspective transform taking the output rectangle onto it, then sampled bicubically. Skewed quadris come out
+ * rectified, and the quadri's rotation is applied by picking which of its corners lands on the top-left one.
+ * <p>
+ * The output is RGB, or gray for a gray source, unless some of its pixels map outside the source image: those are left
+ * transparent in an RGBA output.
+ * <p>
+ * Quadris that are upright rectangles within half a pixel, as photos laid straight on the scanner glass are, get
+ * snapped on the pixel grid and copied without any interpolation: bit-exact and much faster.
+ * <p>
+ * The output is rendered by scanlines: its rows, or its columns when the quadri is rotated by a quadrant, so that each
+ * scanline runs along the source rows.
+ */
+public final class QuadriWarp {
+
+  private static final int TILE_SCANLINES = 32;
+  private static final double UPRIGHT_TOLERANCE = 0.5; // pixel, how far off the corners of a straight quadri may be
+  private static final int KERNEL_MARGIN = 2; // source rows a bicubic sample reaches past its center
+  public static final int SOURCE_MARGIN = KERNEL_MARGIN + 1; // source pixels around a quadri its crop may read
+
+  private final Homography homography; // output → source
+  private final boolean upright; // pixel aligned rectangle, only rotated by quadrants if at all
+  @Getter
+  private final boolean columnScan; // scanlines are the output columns, when those are the ones running along the source rows
+  @Getter
+  private final int width;
+  @Getter
+  private final int height;
+
+  /**
+   * @param quadri in the coordinates of the image it's cropped out of
+   */
+  public QuadriWarp(Quadri quadri) {
+    Point[] corners = quadri.toPoints().toArray(new Point[0]);
+    Point[] snapped = snapUpright(corners);
+    this.upright = snapped != null;
+    if (upright) {
+      corners = snapped;
+    }
+
+    int quadrants = quadri.getRotation().getQuadrants();
+    // turning the output clockwise by a quadrant brings the former bottom-left corner on top-left
+    Point c0 = corners[Math.floorMod(-quadrants, 4)];
+    Point c1 = corners[Math.floorMod(1 - quadrants, 4)];
+    Point c2 = corners[Math.floorMod(2 - quadrants, 4)];
+    Point c3 = corners[Math.floorMod(3 - quadrants, 4)];
+
+    this.width = Math.max(1, (int) Math.round(Math.max(distance(c0, c1), distance(c3, c2))));
+    this.height = Math.max(1, (int) Math.round(Math.max(distance(c0, c3), distance(c1, c2))));
+    this.homography = Homography.rectToQuad(width, height, c0, c1, c2, c3);
+
+    double cx = width / 2.0, cy = height / 2.0, v = homography.mapY(cx, cy);
+    this.columnScan = Math.abs(homography.mapY(cx + 1, cy) - v) > Math.abs(homography.mapY(cx, cy + 1) - v);
+  }
+
+  /**
+   * @return the corners snapped on the pixel grid when they make an upright rectangle within {@value #UPRIGHT_TOLERANCE}
+   * pixel, null otherwise
+   */
+  private static Point[] snapUpright(Point[] corners) {
+    double[] xs = Arrays.stream(corners).mapToDouble(p -> p.x).sorted().toArray();
+    double[] ys = Arrays.stream(corners).mapToDouble(p -> p.y).sorted().toArray();
+    if (xs[1] - xs[0] > UPRIGHT_TOLERANCE || xs[3] - xs[2] > UPRIGHT_TOLERANCE
+        || ys[1] - ys[0] > UPRIGHT_TOLERANCE || ys[3] - ys[2] > UPRIGHT_TOLERANCE) {
+      return null;
+    }
+    double left = Math.round((xs[0] + xs[1]) / 2), right = Math.round((xs[2] + xs[3]) / 2);
+    double top = Math.round((ys[0] + ys[1]) / 2), bottom = Math.round((ys[2] + ys[3]) / 2);
+    if (right <= left || bottom <= top) {
+      return null;
+    }
+
+    Point[] snapped = new Point[corners.length];
+    int seen = 0; // one bit per rectangle corner, so a crossed quadri isn't mistaken for a rectangle
+    for (int i = 0; i < corners.length; i++) {
+      boolean isRight = corners[i].x > (left + right) / 2, isBottom = corners[i].y > (top + bottom) / 2;
+      snapped[i] = new Point(isRight ? right : left, isBottom ? bottom : top);
+      seen |= 1 << ((isRight ? 1 : 0) + (isBottom ? 2 : 0));
+    }
+    return seen == 0b1111 ? snapped : null;
+  }
+
+  private static double distance(Point p, Point q) {
+    return Math.hypot(q.x - p.x, q.y - p.y);
+  }
+
+  public BufferedImage apply(BufferedImage sourceImage) {
+    return apply(sourceImage, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * @param pool renders tiles of {@value #TILE_SCANLINES} scanlines in parallel
+   */
+  public BufferedImage apply(BufferedImage sourceImage, ForkJoinPool pool) {
+    PixelSource source = PixelSource.of(sourceImage);
+    BufferedImage output = createOutput(source);
+    pool.invoke(new ScanlineTiles(this, source, output, 0, scanlines()));
+    return output;
+  }
+
+  BufferedImage createOutput(PixelSource source) {
+    return ImageUtils.createBufferedImage(outputColorModel(source), width, height);
+  }
+
+  /**
+   * RGBA only when some of the output is left transparent, or the source has an alpha channel of its own.
+   * Otherwise RGB, or gray for a gray source.
+   */
+  private ColorModel outputColorModel(PixelSource source) {
+    if (source.hasAlpha() || !isCoveredBy(source.getWidth(), source.getHeight())) {
+      return ImageUtils.COLOR_MODEL_RGBA;
+    }
+    return source.isGray() ? ImageUtils.COLOR_MODEL_GRAY : ImageUtils.COLOR_MODEL_RGB;
+  }
+
+  /**
+   * @return whether every output pixel maps inside a source of that size
+   */
+  public boolean isCoveredBy(int sourceWidth, int sourceHeight) {
+    double[][] corners = {{0, 0}, {width, 0}, {width, height}, {0, height}};
+    for (double[] corner : corners) {
+      if (!homography.isInFront(corner[0], corner[1])) {
+        return false; // the quadri isn't convex, its mapping folds
+      }
+      double u = homography.mapX(corner[0], corner[1]), v = homography.mapY(corner[0], corner[1]);
+      if (u < 0 || v < 0 || u > sourceWidth || v > sourceHeight) {
+        return false;
+      }
+    }
+    return true; // the quadri being convex, its inside is within the source as well
+  }
+
+  int scanlines() {
+    return columnScan ? width : height;
+  }
+
+  /**
+   * @return the topmost source row the scanline reads, bicubic taps included, which may be off the source
+   */
+  int scanlineTop(int i) {
+    return (int) Math.floor(Math.min(scanlineEndY(i, false), scanlineEndY(i, true))) - SOURCE_MARGIN;
+  }
+
+  /**
+   * @return the source row below the last one the scanline reads, bicubic taps included, which may be off the source
+   */
+  int scanlineBottom(int i) {
+    return (int) Math.ceil(Math.max(scanlineEndY(i, false), scanlineEndY(i, true))) + SOURCE_MARGIN;
+  }
+
+  /**
+   * @return where the first or last pixel of the scanline maps in the source, the mapping being monotonic along a line
+   */
+  private double scanlineEndY(int i, boolean last) {
+    int k = last ? (columnScan ? height : width) - 1 : 0;
+    return columnScan ? homography.mapY(i + 0.5, k + 0.5) : homography.mapY(k + 0.5, i + 0.5);
+  }
+
+  /**
+   * Renders scanlines [from, to) of the output
+   */
+  void render(PixelSource source, BufferedImage output, int from, int to) {
+    byte[] out = ((DataBufferByte) output.getRaster().getDataBuffer()).getData();
+    int channels = output.getColorModel().getNumComponents();
+    if (upright) {
+      copyScanlines(source, out, channels, from, to);
+    } else {
+      resampleScanlines(source, out, channels, from, to);
+    }
+  }
+
+  /**
+   * The upright case: each output pixel is exactly a source pixel, so they're copied as is, with no interpolation
+   */
+  private void copyScanlines(PixelSource source, byte[] out, int channels, int from, int to) {
+    byte[] data = source.getData();
+    int sourceWidth = source.getWidth(), sourceHeight = source.getHeight();
+    int redOffset = source.getRedOffset(), greenOffset = source.getGreenOffset(), blueOffset = source.getBlueOffset();
+    int alphaOffset = source.getAlphaOffset();
+
+    int length = columnScan ? height : width;
+    int outStep = columnScan ? width * channels : channels;
+    double stepX = columnScan ? 0 : 1, stepY = columnScan ? 1 : 0;
+    // unit steps in the source when moving along the scanline
+    int dx = (int) Math.round(homography.mapX(stepX, stepY) - homography.mapX(0, 0));
+    int dy = (int) Math.round(homography.mapY(stepX, stepY) - homography.mapY(0, 0));
+    int step = dx * source.getPixelStride() + dy * source.getScanlineStride();
+
+    for (int i = from; i < to; i++) {
+      double x0 = columnScan ? i + 0.5 : 0.5, y0 = columnScan ? 0.5 : i + 0.5;
+      int sx = (int) Math.floor(homography.mapX(x0, y0));
+      int sy = (int) Math.floor(homography.mapY(x0, y0));
+      int s = source.offset(sx, sy);
+      int p = (columnScan ? i : i * width) * channels;
+      for (int k = 0; k < length; k++, p += outStep, sx += dx, sy += dy, s += step) {
+        if (sx >= 0 && sy >= 0 && sx < sourceWidth && sy < sourceHeight) {
+          store(out, p, channels, data[s + redOffset], data[s + greenOffset], data[s + blueOffset],
+              alphaOffset >= 0 ? data[s + alphaOffset] : (byte) 255);
+        }
+      }
+    }
+  }
+
+  private void resampleScanlines(PixelSource source, byte[] out, int channels, int from, int to) {
+    BicubicSampler sampler = new BicubicSampler(source);
+    int sourceWidth = source.getWidth(), sourceHeight = source.getHeight();
+
+    int length = columnScan ? height : width;
+    int outStep = columnScan ? width * channels : channels;
+    double[] xs = new double[length];
+    double[] ys = new double[length];
+    int[] rgba = new int[4];
+    for (int i = from; i < to; i++) {
+      if (columnScan) {
+        homography.mapLine(i + 0.5, 0.5, 0, 1, xs, ys); // pixel centers
+      } else {
+        homography.mapLine(0.5, i + 0.5, 1, 0, xs, ys);
+      }
+      int p = (columnScan ? i : i * width) * channels;
+      for (int k = 0; k < length; k++, p += outStep) {
+        double u = xs[k], v = ys[k];
+        if (u >= 0 && v >= 0 && u <= sourceWidth && v <= sourceHeight) {
+          sampler.sample(u - 0.5, v - 0.5, rgba);
+          store(out, p, channels, (byte) rgba[0], (byte) rgba[1], (byte) rgba[2], (byte) rgba[3]);
+        }
+      }
+    }
+  }
+
+  private static void store(byte[] out, int p, int channels, byte r, byte g, byte b, byte a) {
+    out[p] = r;
+    if (channels > 1) {
+      out[p + 1] = g;
+      out[p + 2] = b;
+      if (channels > 3) {
+        out[p + 3] = a;
+      }
+    }
+  }
+
+  /**
+   * Halves the scanlines until they fit in a tile, each tile rendering on its own
+   */
+  static final class ScanlineTiles extends RecursiveAction {
+    private final QuadriWarp warp;
+    private final PixelSource source;
+    private final BufferedImage output;
+    private final int from;
+    private final int to;
+
+    ScanlineTiles(QuadriWarp warp, PixelSource source, BufferedImage output, int from, int to) {
+      this.warp = warp;
+      this.source = source;
+      this.output = output;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= TILE_SCANLINES) {
+        warp.render(source, output, from, to);
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new ScanlineTiles(warp, source, output, from, middle), new ScanlineTiles(warp, source, output, middle, to));
+      }
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package org.mars.cutter.domain;
+
+import lombok.Getter;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Java-side copy of a single channel edge map (Canny output) so lit pixels can be probed without a JNI call per pixel.
+ * Pixels are stored row by row, 0 meaning "no edge".
+ */
+@Getter
+public final class EdgeMap {
+
+  private final int width;
+  private final int height;
+  private final byte[] pixels;
+
+  public EdgeMap(int width, int height, byte[] pixels) {
+    if (pixels.length != width * height) {
+      throw new IllegalArgumentException("Expected " + (width * height) + " pixels, got " + pixels.length);
+    }
+    this.width = width;
+    this.height = height;
+    this.pixels = pixels;
+  }
+
+  public static EdgeMap of(Mat edgesMat) {
+    if (edgesMat.type() != CvType.CV_8UC1) {
+      throw new IllegalArgumentException("Expected a single channel 8 bits edge map, got type " + edgesMat.type());
+    }
+    int width = edgesMat.cols();
+    int height = edgesMat.rows();
+    byte[] pixels = new byte[width * height];
+    edgesMat.get(0, 0, pixels);
+    return new EdgeMap(width, height, pixels);
+  }
+
+  public Mat toMat() {
+    Mat edgesMat = new Mat(height, width, CvType.CV_8UC1);
+    edgesMat.put(0, 0, pixels);
+    return edgesMat;
+  }
+
+  /**
+   * @return whether the pixel is an edge, out of bounds pixels never are
+   */
+  public boolean isLit(int x, int y) {
+    return x >= 0 && y >= 0 && x < width && y < height && pixels[y * width + x] != 0;
+  }
+}
@@ -0,0 +1,141 @@
+package org.mars.cutter.domain;
+
+import lombok.Getter;
+
+/**
+ * Row and column prefix sums of an {@link EdgeMap}, so the lit pixels under a near-horizontal or near-vertical line
+ * are counted run by run instead of pixel by pixel.
+ * A line within a few degrees of H/V only changes column (resp. row) a handful of times over the whole image,
+ * so a query costs O(1) per run, whatever the length of the segment.
+ * The samples are the same as walking the line one pixel at a time along its main axis and rounding the other coordinate.
+ * Samples outside the image are unlit on every side, so a line running off the image gets no support from there.
+ */
+public final class EdgeSupportIndex {
+
+  @Getter
+  private final int width;
+  @Getter
+  private final int height;
+
+  // colPrefix[y * width + x] = lit pixels of column x on rows [0, y[, stored row by row so it's built sequentially
+  private final char[] colPrefix;
+  // rowPrefix[y * (width+1) + x] = lit pixels of row y on columns [0, x[
+  private final char[] rowPrefix;
+
+  public EdgeSupportIndex(EdgeMap edges) {
+    this.width = edges.getWidth();
+    this.height = edges.getHeight();
+    if (width > Character.MAX_VALUE || height > Character.MAX_VALUE) {
+      throw new IllegalArgumentException("Edge map too big to be indexed: " + width + "x" + height);
+    }
+
+    byte[] pixels = edges.getPixels();
+    this.colPrefix = new char[(height + 1) * width];
+    this.rowPrefix = new char[height * (width + 1)];
+
+    for (int y = 0; y < height; y++) {
+      int pixelRow = y * width;
+      int colRow = pixelRow; // previous prefix row
+      int nextColRow = pixelRow + width;
+      int rowRow = y * (width + 1);
+      char rowCount = 0;
+      for (int x = 0; x < width; x++) {
+        int lit = pixels[pixelRow + x] != 0 ? 1 : 0;
+        colPrefix[nextColRow + x] = (char) (colPrefix[colRow + x] + lit);
+        rowCount += (char) lit;
+        rowPrefix[rowRow + x + 1] = rowCount;
+      }
+    }
+  }
+
+  /**
+   * @return how many lit pixels lie on column x between rows y1 and y2 (both included), out of bounds pixels are not lit
+   */
+  public int countColumn(int x, int y1, int y2) {
+    if (x < 0 || x >= width) {
+      return 0;
+    }
+    y1 = Math.max(y1, 0);
+    y2 = Math.min(y2, height - 1);
+    return y1 > y2 ? 0 : colPrefix[(y2 + 1) * width + x] - colPrefix[y1 * width + x];
+  }
+
+  /**
+   * @return how many lit pixels lie on row y between columns x1 and x2 (both included), out of bounds pixels are not lit
+   */
+  public int countRow(int y, int x1, int x2) {
+    if (y < 0 || y >= height) {
+      return 0;
+    }
+    x1 = Math.max(x1, 0);
+    x2 = Math.min(x2, width - 1);
+    int row = y * (width + 1);
+    return x1 > x2 ? 0 : rowPrefix[row + x2 + 1] - rowPrefix[row + x1];
+  }
+
+  /**
+   * Lit pixels of a near-vertical line, sampled on y = topY, topY+1... up to bottomY
+   */
+  public int countVertical(Hough vLine, double topY, double bottomY) {
+    return countLine(vLine.getX0(), vLine.getY0(), Math.tan(vLine.getTheta()), topY, bottomY, true);
+  }
+
+  /**
+   * Lit pixels of a near-horizontal line, sampled on x = leftX, leftX+1... up to rightX
+   */
+  public int countHorizontal(Hough hLine, double leftX, double rightX) {
+    double theta = hLine.getTheta();
+    double gradient = Math.cos(theta) / Math.sin(theta); // NOT 1/tan cause tan(π/2) → ∞
+    return countLine(hLine.getY0(), hLine.getX0(), gradient, leftX, rightX, false);
+  }
+
+  /**
+   * Walks the line along its main axis m, from start to end, the cross coordinate being c = p0c + (p0m - m) * gradient.
+   * Consecutive samples sharing the same rounded cross coordinate form a run, counted with one prefix sum query.
+   */
+  private int countLine(double p0c, double p0m, double gradient, double start, double end, boolean vertical) {
+    if (end < start) {
+      return 0;
+    }
+    int samples = (int) Math.floor(end - start) + 1;
+    long m0 = Math.round(start);
+    double c0 = p0c + (p0m - start) * gradient;
+
+    int count = 0;
+    int k = 0;
+    while (k < samples) {
+      long c = Math.round(cross(p0c, p0m, gradient, start, k));
+      int last = lastOfRun(p0c, p0m, gradient, start, k, samples, c, c0);
+      int m1 = (int) (m0 + k), m2 = (int) (m0 + last);
+      if (c >= Integer.MIN_VALUE && c <= Integer.MAX_VALUE) {
+        count += vertical ? countColumn((int) c, m1, m2) : countRow((int) c, m1, m2);
+      }
+      k = last + 1;
+    }
+    return count;
+  }
+
+  private static double cross(double p0c, double p0m, double gradient, double start, int k) {
+    return p0c + (p0m - (start + k)) * gradient;
+  }
+
+  private static int lastOfRun(double p0c, double p0m, double gradient, double start, int k, int samples, long c, double c0) {
+    int last;
+    if (gradient == 0.0) {
+      return samples - 1;
+    } else if (gradient > 0) { // cross coordinate decreasing, the run lasts while it stays >= c - 0.5
+      last = (int) Math.min(samples - 1, Math.max(k, Math.floor((c0 - c + 0.5) / gradient)));
+    } else { // increasing, the run lasts while it stays < c + 0.5
+      last = (int) Math.min(samples - 1, Math.max(k, Math.ceil((c + 0.5 - c0) / -gradient) - 1));
+    }
+
+    // the estimate may be off by one because of rounding, settle it on the actual samples
+    while (last + 1 < samples && Math.round(cross(p0c, p0m, gradient, start, last + 1)) == c) {
+      last++;
+    }
+    while (last > k && Math.round(cross(p0c, p0m, gradient, start, last)) != c) {
+      last--;
+    }
+    return last;
+  }
+}
@@ -0,0 +1,7 @@
+package org.mars.cutter.domain;
+
+/**
+ * @param edgeMap the single channel Canny output, Java side
+ * @param support the same edges, indexed for line support queries
+ */
+public record Edges(EdgeMap edgeMap, EdgeSupportIndex support) {}
@@ -0,0 +1,64 @@
+package org.mars.cutter.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * Hough lines along with their accumulator votes, ordered by decreasing votes like OpenCV returns them.
+ */
+public final class HoughVotes {
+
+  private final float[] rhos;
+  private final float[] thetas;
+  private final int[] votes;
+
+  /**
+   * Lines were gathered with votes strictly above this threshold
+   */
+  @Getter
+  private final int threshold;
+
+  /**
+   * Every line within this angle of the horizontal or vertical was voted for, π/2 when all angles were
+   */
+  @Getter
+  private final double angleTolerance;
+
+  public HoughVotes(float[] rhos, float[] thetas, int[] votes, int threshold, double angleTolerance) {
+    if (rhos.length != thetas.length || rhos.length != votes.length) {
+      throw new IllegalArgumentException("rhos, thetas and votes must have the same length");
+    }
+    this.rhos = rhos;
+    this.thetas = thetas;
+    this.votes = votes;
+    this.threshold = threshold;
+    this.angleTolerance = angleTolerance;
+  }
+
+  public int size() {
+    return votes.length;
+  }
+
+  public int getVotes(int i) {
+    return votes[i];
+  }
+
+  /**
+   * @return whether these votes hold every line a Hough transform with that threshold would find within that angle tolerance
+   */
+  public boolean covers(int threshold, double angleTolerance) {
+    return threshold >= this.threshold && angleTolerance <= this.angleTolerance;
+  }
+
+  /**
+   * @return the lines having strictly more votes than the threshold, still by decreasing votes
+   */
+  public List<Hough> lines(int threshold) {
+    List<Hough> lines = new ArrayList<>();
+    for (int i = 0; i < votes.length && votes[i] > threshold; i++) {
+      lines.add(new Hough(rhos[i], thetas[i]));
+    }
+    return lines;
+  }
+}
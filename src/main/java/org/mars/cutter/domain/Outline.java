@@ -1,34 +1,43 @@
 package org.mars.cutter.domain;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.nio.file.Path;
 import java.util.List;
 import org.mars.cutter.DetectionParams;
-import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Size;
-import org.opencv.highgui.HighGui;
 
+/**
+ * @param edgeMap the single channel Canny output, only rendered as an image when the UI asks for it. Null, like the edge
+ * support and the Hough votes, when the outline is restored from the analysis cache.
+ */
 public record Outline(
     Path path, DetectionParams params,
-    Size originalSize, Mat cannyMat,
+    Size originalSize, EdgeMap edgeMap,
+    EdgeSupportIndex edgeSupport,
+    HoughVotes houghVotes,
     HVHoughs hvHoughs,
     List<Point> corners,
     List<Bounds> bounds) {
 
+  /**
+   * @return the edges in white on black, rendered on each call, null when the outline was restored from the cache
+   */
   public BufferedImage getCannyImage() {
-    return (BufferedImage)HighGui.toBufferedImage(cannyMat);
-  }
-
-  public Size cannySize() {
-    return cannyMat.size();
+    if (edgeMap == null) {
+      return null;
+    }
+    BufferedImage cannyImage = new BufferedImage(edgeMap.getWidth(), edgeMap.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+    byte[] pixels = edgeMap.getPixels();
+    byte[] data = ((DataBufferByte) cannyImage.getRaster().getDataBuffer()).getData();
+    for (int i = 0; i < pixels.length; i++) {
+      data[i] = pixels[i] != 0 ? (byte) 255 : 0;
+    }
+    return cannyImage;
   }
 
   public Size originalSize() {
     return originalSize;
   }
-
-  public double scale() {
-    return Math.min(originalSize.width/cannyMat.width(), originalSize.height/cannyMat.height());
-  }
 }
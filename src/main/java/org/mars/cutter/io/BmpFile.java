@@ -0,0 +1,197 @@
+package org.mars.cutter.io;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import lombok.Getter;
+import org.mars.cutter.util.FileUtils;
+
+/**
+ * Uncompressed BMP (24 bits, or 8 bits with a gray palette as scanners write them) read through positional reads of its
+ * channel rather than decoded by ImageIO: rows and regions are copied straight into the image asked for.
+ * <p>
+ * The file is only held open until closed, no mapping of it outliving the reads, so it can be renamed right after.
+ * Other kinds of BMP, truncated ones or those over 2GB, are left to ImageIO.
+ */
+public final class BmpFile implements Closeable {
+
+  private static final int FILE_HEADER_SIZE = 14;
+  private static final int INFO_HEADER_SIZE = 40;
+  private static final int BI_RGB = 0;
+
+  private final FileChannel channel;
+  private final int pixelsOffset;
+  private final int stride; // bytes per row, padded to 4
+  private final boolean bottomUp;
+  @Getter
+  private final int width;
+  @Getter
+  private final int height;
+  @Getter
+  private final boolean gray;
+
+  private BmpFile(FileChannel channel, int pixelsOffset, int width, int height, boolean bottomUp, boolean gray) {
+    this.channel = channel;
+    this.pixelsOffset = pixelsOffset;
+    this.width = width;
+    this.height = height;
+    this.bottomUp = bottomUp;
+    this.gray = gray;
+    this.stride = ((width * (gray ? 8 : 24) + 31) / 32) * 4;
+  }
+
+  public static boolean isBmp(Path file) {
+    return "bmp".equalsIgnoreCase(FileUtils.getExt(file));
+  }
+
+  /**
+   * @return the opened file, to be closed, or null when it's not a BMP this class handles
+   */
+  public static BmpFile open(Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    BmpFile bmp = null;
+    try {
+      bmp = open(channel);
+      return bmp;
+    } finally {
+      if(bmp == null) {
+        channel.close();
+      }
+    }
+  }
+
+  private static BmpFile open(FileChannel channel) throws IOException {
+    long size = channel.size();
+    if(size < FILE_HEADER_SIZE + INFO_HEADER_SIZE || size > Integer.MAX_VALUE) {
+      return null;
+    }
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE + INFO_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, header, 0);
+
+    if(header.get(0) != 'B' || header.get(1) != 'M') {
+      return null;
+    }
+    int pixelsOffset = header.getInt(10);
+    int headerSize = header.getInt(14);
+    int width = header.getInt(18);
+    int height = header.getInt(22);
+    int bitCount = header.getShort(28);
+    int compression = header.getInt(30);
+    if(headerSize < INFO_HEADER_SIZE || width <= 0 || height == 0 || compression != BI_RGB) {
+      return null;
+    }
+
+    boolean gray;
+    if(bitCount == 24) {
+      gray = false;
+    } else if(bitCount == 8 && hasGrayPalette(channel, FILE_HEADER_SIZE + (long) headerSize, header.getInt(46))) {
+      gray = true;
+    } else {
+      return null;
+    }
+
+    BmpFile bmp = new BmpFile(channel, pixelsOffset, width, Math.abs(height), height > 0, gray);
+    if(pixelsOffset < 0 || (long) pixelsOffset + (long) bmp.stride * bmp.height > size) {
+      return null; // truncated, ImageIO tells what it makes of it
+    }
+    return bmp;
+  }
+
+  /**
+   * @return false as well when the palette is cut short, ImageIO then tells what's wrong with the file
+   */
+  private static boolean hasGrayPalette(FileChannel channel, long paletteOffset, int colorsUsed) throws IOException {
+    int colors = colorsUsed == 0 ? 256 : colorsUsed;
+    if(colors != 256 || paletteOffset + colors * 4L > channel.size()) {
+      return false;
+    }
+    ByteBuffer palette = ByteBuffer.allocate(colors * 4);
+    readFully(channel, palette, paletteOffset);
+    for (int i = 0; i < colors; i++) {
+      int p = i * 4; // B, G, R, reserved
+      if((palette.get(p) & 0xff) != i || (palette.get(p + 1) & 0xff) != i || (palette.get(p + 2) & 0xff) != i) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if(read < 0) {
+        throw new EOFException("BMP cut short at " + position);
+      }
+      position += read;
+    }
+  }
+
+  private long rowOffset(int y) {
+    return pixelsOffset + (long) (bottomUp ? height - 1 - y : y) * stride;
+  }
+
+  private int channels() {
+    return gray ? 1 : 3;
+  }
+
+  private BufferedImage createImage(int width, int height) {
+    return new BufferedImage(width, height, gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+  }
+
+  /**
+   * @return a copy of the region, TYPE_3BYTE_BGR or TYPE_BYTE_GRAY, whose byte layout is the one of BMP rows
+   */
+  public BufferedImage readRegion(Rectangle region) throws IOException {
+    Rectangle bounds = region.intersection(new Rectangle(0, 0, width, height));
+    if(bounds.isEmpty()) {
+      throw new IllegalArgumentException("Region " + region + " is out of the " + width + "x" + height + " image");
+    }
+    BufferedImage image = createImage(bounds.width, bounds.height);
+    byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    int channels = channels();
+    int rowLength = bounds.width * channels;
+    for (int y = 0; y < bounds.height; y++) {
+      readFully(channel, ByteBuffer.wrap(data, y * rowLength, rowLength), rowOffset(bounds.y + y) + (long) bounds.x * channels);
+    }
+    return image;
+  }
+
+  /**
+   * @return the image keeping one pixel out of subsampling in both directions, like ImageReadParam.setSourceSubsampling
+   */
+  public BufferedImage readSubsampled(int subsampling) throws IOException {
+    if(subsampling == 1) {
+      return readRegion(new Rectangle(0, 0, width, height));
+    }
+    int subWidth = (width + subsampling - 1) / subsampling;
+    int subHeight = (height + subsampling - 1) / subsampling;
+    BufferedImage image = createImage(subWidth, subHeight);
+    byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    int channels = channels();
+    int step = subsampling * channels;
+    byte[] row = new byte[width * channels];
+    int p = 0;
+    for (int y = 0; y < subHeight; y++) {
+      readFully(channel, ByteBuffer.wrap(row), rowOffset(y * subsampling));
+      for (int x = 0, s = 0; x < subWidth; x++, s += step) {
+        for (int c = 0; c < channels; c++) {
+          data[p++] = row[s + c];
+        }
+      }
+    }
+    return image;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
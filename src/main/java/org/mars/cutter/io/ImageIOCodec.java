@@ -0,0 +1,86 @@
+package org.mars.cutter.io;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Codec writing through an ImageIO writer. Writers aren't thread safe, so each thread gets its own one, looked up and
+ * set up on its first write only, then reused for all the next ones.
+ */
+abstract class ImageIOCodec implements OutputCodec {
+
+  private record Encoder(ImageWriter writer, ImageWriteParam param) {}
+
+  private final String formatName;
+  private final String extension;
+  private final ThreadLocal<Encoder> encoders;
+
+  ImageIOCodec(String formatName, String extension) {
+    this.formatName = formatName;
+    this.extension = extension;
+    this.encoders = ThreadLocal.withInitial(() -> {
+      ImageWriter writer = lookupWriter();
+      return new Encoder(writer, createParam(writer));
+    });
+  }
+
+  private ImageWriter lookupWriter() {
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+    if (!writers.hasNext()) {
+      throw new IllegalStateException("No ImageIO writer for: " + formatName);
+    }
+    return writers.next();
+  }
+
+  /**
+   * @return the settings of the format, applied to every image this writer writes
+   */
+  abstract ImageWriteParam createParam(ImageWriter writer);
+
+  /**
+   * @return the image as the format can hold it
+   */
+  BufferedImage prepare(BufferedImage image) {
+    return image;
+  }
+
+  /**
+   * @return the metadata of this image, null for the writer's default
+   */
+  IIOMetadata createMetadata(ImageWriter writer, BufferedImage image, ImageWriteParam param) throws IOException {
+    return null;
+  }
+
+  @Override
+  public String getExtension() {
+    return extension;
+  }
+
+  @Override
+  public void write(BufferedImage image, Path file) throws IOException {
+    Encoder encoder = encoders.get();
+    ImageWriter writer = encoder.writer();
+    BufferedImage prepared = prepare(image);
+    IIOMetadata metadata = createMetadata(writer, prepared, encoder.param());
+
+    Files.deleteIfExists(file); // the stream would write over an existing file without truncating it
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())) {
+      if (out == null) {
+        throw new IOException("Cannot write: " + file);
+      }
+      writer.setOutput(out);
+      writer.write(null, new IIOImage(prepared, null, metadata), encoder.param());
+    } finally {
+      writer.setOutput(null);
+    }
+  }
+}
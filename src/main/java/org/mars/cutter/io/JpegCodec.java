@@ -0,0 +1,81 @@
+package org.mars.cutter.io;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import org.mars.cutter.io.OutputCodec.ChromaSubsampling;
+import org.w3c.dom.NodeList;
+
+final class JpegCodec extends ImageIOCodec {
+
+  private static final String METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+  private final float quality;
+  private final ChromaSubsampling subsampling;
+  private final boolean progressive;
+
+  JpegCodec(float quality, ChromaSubsampling subsampling, boolean progressive) {
+    super("jpeg", "jpg");
+    if (quality < 0 || quality > 1) {
+      throw new IllegalArgumentException("Invalid JPEG quality: " + quality);
+    }
+    this.quality = quality;
+    this.subsampling = subsampling;
+    this.progressive = progressive;
+  }
+
+  @Override
+  ImageWriteParam createParam(ImageWriter writer) {
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(quality);
+    param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+    return param;
+  }
+
+  @Override
+  BufferedImage prepare(BufferedImage image) {
+    if (!image.getColorModel().hasAlpha()) {
+      return image;
+    }
+    BufferedImage flattened = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+    Graphics2D g = flattened.createGraphics();
+    g.drawImage(image, 0, 0, Color.white, null);
+    g.dispose();
+    return flattened;
+  }
+
+  /**
+   * The writer's default metadata for the image, with the luma sampling factors of the chroma subsampling asked for
+   */
+  @Override
+  IIOMetadata createMetadata(ImageWriter writer, BufferedImage image, ImageWriteParam param) throws IOException {
+    IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+    IIOMetadataNode tree = (IIOMetadataNode) metadata.getAsTree(METADATA_FORMAT);
+    NodeList components = tree.getElementsByTagName("componentSpec");
+    if (components.getLength() < 3) {
+      return metadata; // gray, nothing to subsample
+    }
+    IIOMetadataNode luma = (IIOMetadataNode) components.item(0);
+    luma.setAttribute("HsamplingFactor", Integer.toString(subsampling.getHorizontal()));
+    luma.setAttribute("VsamplingFactor", Integer.toString(subsampling.getVertical()));
+    for (int c = 1; c < components.getLength(); c++) {
+      IIOMetadataNode chroma = (IIOMetadataNode) components.item(c);
+      chroma.setAttribute("HsamplingFactor", "1");
+      chroma.setAttribute("VsamplingFactor", "1");
+    }
+    metadata.setFromTree(METADATA_FORMAT, tree);
+    return metadata;
+  }
+
+  @Override
+  public String toString() {
+    return "JPEG quality " + quality + ", " + subsampling + (progressive ? ", progressive" : "");
+  }
+}
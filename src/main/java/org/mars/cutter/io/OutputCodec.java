@@ -0,0 +1,111 @@
+package org.mars.cutter.io;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Locale;
+import lombok.Getter;
+import org.mars.cutter.io.ParallelPngWriter.Filter;
+
+/**
+ * How the crops are written: the format, its settings, and the encoder set up once for them and shared by every
+ * crop task.
+ */
+public interface OutputCodec {
+
+  /**
+   * Luma sampling factors, the chroma components being sampled once per block of that many pixels
+   */
+  @Getter
+  enum ChromaSubsampling {
+    YUV444(1, 1), YUV422(2, 1), YUV420(2, 2);
+
+    private final int horizontal;
+    private final int vertical;
+
+    ChromaSubsampling(int horizontal, int vertical) {
+      this.horizontal = horizontal;
+      this.vertical = vertical;
+    }
+  }
+
+  OutputCodec DEFAULT = png(ParallelPngWriter.DEFAULT_LEVEL, Filter.ADAPTIVE);
+  float JPEG_QUALITY = 0.9f;
+
+  /**
+   * @return the extension of the files written, without the dot
+   */
+  String getExtension();
+
+  void write(BufferedImage image, Path file) throws IOException;
+
+
+  /**
+   * @param level deflate level, 0 to 9 or -1 for zlib's default
+   */
+  static OutputCodec png(int level, Filter filter) {
+    return new PngCodec(new ParallelPngWriter(level, filter));
+  }
+
+  /**
+   * Transparent pixels are flattened on white, JPEG having no alpha channel
+   *
+   * @param quality 0 to 1
+   */
+  static OutputCodec jpeg(float quality, ChromaSubsampling subsampling, boolean progressive) {
+    return new JpegCodec(quality, subsampling, progressive);
+  }
+
+  /**
+   * @param deflate whether the strips are deflated, or left uncompressed
+   */
+  static OutputCodec tiff(boolean deflate) {
+    return new TiffCodec(deflate);
+  }
+
+  /**
+   * Parses a codec from the command line, the settings left out taking their default value:
+   * <pre>
+   *   png[:level[:filter]]                               png:9:paeth
+   *   jpeg[:quality[:subsampling[:progressive]]]         jpeg:0.9:yuv444:progressive
+   *   tiff[:deflate|none]                                tiff:none
+   * </pre>
+   */
+  static OutputCodec parse(String spec) {
+    String[] parts = spec.trim().toLowerCase(Locale.ROOT).split(":");
+    try {
+      switch (parts[0]) {
+        case "png" -> {
+          checkParts(spec, parts, 3);
+          return png(parts.length > 1 ? Integer.parseInt(parts[1]) : ParallelPngWriter.DEFAULT_LEVEL,
+              parts.length > 2 ? Filter.valueOf(parts[2].toUpperCase(Locale.ROOT)) : Filter.ADAPTIVE);
+        }
+        case "jpeg", "jpg" -> {
+          checkParts(spec, parts, 4);
+          if (parts.length > 3 && !parts[3].equals("progressive") && !parts[3].equals("baseline")) {
+            throw new IllegalArgumentException("Expected progressive or baseline in codec: " + spec);
+          }
+          return jpeg(parts.length > 1 ? Float.parseFloat(parts[1]) : JPEG_QUALITY,
+              parts.length > 2 ? ChromaSubsampling.valueOf(parts[2].toUpperCase(Locale.ROOT)) : ChromaSubsampling.YUV420,
+              parts.length > 3 && parts[3].equals("progressive"));
+        }
+        case "tif", "tiff" -> {
+          checkParts(spec, parts, 2);
+          if (parts.length > 1 && !parts[1].equals("deflate") && !parts[1].equals("none")) {
+            throw new IllegalArgumentException("Expected deflate or none in codec: " + spec);
+          }
+          return tiff(parts.length == 1 || parts[1].equals("deflate"));
+        }
+        default -> throw new IllegalArgumentException("Unknown codec, expected png, jpeg or tiff: " + spec);
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid number in codec: " + spec, e);
+    }
+  }
+
+  private static void checkParts(String spec, String[] parts, int max) {
+    if (parts.length > max) {
+      throw new IllegalArgumentException("Too many settings in codec: " + spec);
+    }
+  }
+}
@@ -0,0 +1,422 @@
+package org.mars.cutter.io;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import lombok.Getter;
+
+/**
+ * PNG writer compressing blocks of rows in parallel, the way pigz does for gzip: each block is filtered and deflated
+ * on its own, primed with the last 32K of the block before it so back-references still cross the blocks, and ends on
+ * a sync flush so the raw deflate streams simply concatenate into one. The Adler-32 of the whole zlib stream is
+ * combined from the blocks' own.
+ * <p>
+ * Blocks are written out in order as they're done, and only a window of them is in flight, so writing an image of any
+ * size holds a few megabytes on top of it.
+ * <p>
+ * The output is a standard 8 bits per sample PNG: gray, RGB or RGBA depending on the image.
+ */
+public final class ParallelPngWriter {
+
+  public enum Filter {
+    NONE, SUB, UP, AVERAGE, PAETH,
+    /**
+     * Picks the filter of each row minimizing the sum of its absolute differences, like libpng does
+     */
+    ADAPTIVE
+  }
+
+  public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+  private static final int BLOCK_SIZE = 128 * 1024; // filtered bytes per block, same as pigz
+  private static final int DICTIONARY_SIZE = 32 * 1024; // deflate's window
+  private static final int IDAT_SIZE = 64 * 1024;
+  private static final int WINDOW_SIZE = 2 * Runtime.getRuntime().availableProcessors(); // blocks in flight
+  private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+  private static final int ADLER_BASE = 65521;
+
+  @Getter
+  private final int level;
+  @Getter
+  private final Filter filter;
+  private final Executor executor; // null for the writing thread's pool
+
+  /**
+   * Blocks are compressed on the pool of the writing thread when it's a fork/join worker, on the common pool otherwise
+   */
+  public ParallelPngWriter(int level, Filter filter) {
+    this(level, filter, null);
+  }
+
+  public ParallelPngWriter(int level, Filter filter, Executor executor) {
+    if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    this.level = level;
+    this.filter = filter;
+    this.executor = executor;
+  }
+
+  public void write(BufferedImage image, Path file) throws IOException {
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+      write(image, out);
+    }
+  }
+
+  public void write(BufferedImage image, OutputStream out) throws IOException {
+    ForkJoinPool currentPool = ForkJoinTask.getPool();
+    Executor executor = this.executor != null ? this.executor : currentPool != null ? currentPool : ForkJoinPool.commonPool();
+    Rows rows = new Rows(image);
+    int rowsPerBlock = Math.max(1, BLOCK_SIZE / (rows.rowBytes + 1));
+    int blockCount = (rows.height + rowsPerBlock - 1) / rowsPerBlock;
+
+    // filtering a block doesn't depend on the others, deflating it only needs the one before to be filtered
+    List<CompletableFuture<FilteredBlock>> filtered = new ArrayList<>(blockCount);
+    List<CompletableFuture<byte[]>> deflated = new ArrayList<>(blockCount);
+
+    DataOutputStream data = new DataOutputStream(out);
+    data.write(SIGNATURE);
+    writeHeader(data, rows);
+
+    IdatStream idat = new IdatStream(data);
+    idat.write(zlibHeader());
+    long adler = 1;
+    for (int b = 0; b < blockCount; b++) {
+      // blocks are submitted a window ahead of the one written, so only that many are held at once
+      while (filtered.size() < Math.min(blockCount, b + WINDOW_SIZE)) {
+        submitBlock(rows, rowsPerBlock, blockCount, filtered, deflated, executor);
+      }
+      idat.write(deflated.get(b).join());
+      FilteredBlock block = filtered.get(b).join();
+      adler = combineAdler(adler, block.adler, block.data.length);
+      deflated.set(b, null);
+      if (b > 0) {
+        filtered.set(b - 1, null); // its last 32K primed this block, it's no longer needed
+      }
+    }
+    idat.write(new byte[] {(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler});
+    idat.flush();
+
+    writeChunk(data, "IEND", new byte[0], 0);
+    data.flush();
+  }
+
+
+  private record FilteredBlock(byte[] data, long adler) {}
+
+  private void submitBlock(Rows rows, int rowsPerBlock, int blockCount, List<CompletableFuture<FilteredBlock>> filtered,
+      List<CompletableFuture<byte[]>> deflated, Executor executor) {
+    int b = filtered.size();
+    int from = b * rowsPerBlock, to = Math.min(rows.height, from + rowsPerBlock);
+    boolean last = b == blockCount - 1;
+    CompletableFuture<FilteredBlock> block = CompletableFuture.supplyAsync(() -> filterBlock(rows, from, to), executor);
+    deflated.add(b == 0
+        ? block.thenApplyAsync(filteredBlock -> deflateBlock(filteredBlock, null, last), executor)
+        : block.thenCombineAsync(filtered.get(b - 1), (filteredBlock, previous) -> deflateBlock(filteredBlock, previous, last), executor));
+    filtered.add(block);
+  }
+
+  private FilteredBlock filterBlock(Rows rows, int from, int to) {
+    int rowBytes = rows.rowBytes, bpp = rows.channels;
+    byte[] data = new byte[(to - from) * (rowBytes + 1)];
+    byte[] previous = new byte[rowBytes]; // all zeroes above the first row
+    byte[] current = new byte[rowBytes];
+    byte[][] candidates = filter == Filter.ADAPTIVE ? new byte[Filter.ADAPTIVE.ordinal()][rowBytes] : null;
+    if (from > 0) {
+      rows.read(from - 1, previous);
+    }
+
+    for (int y = from; y < to; y++) {
+      rows.read(y, current);
+      int offset = (y - from) * (rowBytes + 1);
+      if (candidates == null) {
+        data[offset] = (byte) filter.ordinal();
+        applyFilter(filter, current, previous, bpp, data, offset + 1);
+      } else {
+        int best = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int f = 0; f < candidates.length; f++) {
+          applyFilter(Filter.values()[f], current, previous, bpp, candidates[f], 0);
+          long sum = absoluteSum(candidates[f], bestSum);
+          if (sum < bestSum) {
+            bestSum = sum;
+            best = f;
+          }
+        }
+        data[offset] = (byte) best;
+        System.arraycopy(candidates[best], 0, data, offset + 1, rowBytes);
+      }
+
+      byte[] recycled = previous;
+      previous = current;
+      current = recycled;
+    }
+
+    Adler32 adler = new Adler32();
+    adler.update(data);
+    return new FilteredBlock(data, adler.getValue());
+  }
+
+  private static void applyFilter(Filter filter, byte[] row, byte[] up, int bpp, byte[] out, int offset) {
+    int length = row.length;
+    switch (filter) {
+      case NONE -> System.arraycopy(row, 0, out, offset, length);
+      case SUB -> {
+        for (int i = 0; i < length; i++) {
+          int left = i >= bpp ? row[i - bpp] : 0;
+          out[offset + i] = (byte) (row[i] - left);
+        }
+      }
+      case UP -> {
+        for (int i = 0; i < length; i++) {
+          out[offset + i] = (byte) (row[i] - up[i]);
+        }
+      }
+      case AVERAGE -> {
+        for (int i = 0; i < length; i++) {
+          int left = i >= bpp ? row[i - bpp] & 0xff : 0;
+          out[offset + i] = (byte) (row[i] - ((left + (up[i] & 0xff)) >>> 1));
+        }
+      }
+      case PAETH -> {
+        for (int i = 0; i < length; i++) {
+          int left = i >= bpp ? row[i - bpp] & 0xff : 0;
+          int upLeft = i >= bpp ? up[i - bpp] & 0xff : 0;
+          out[offset + i] = (byte) (row[i] - paeth(left, up[i] & 0xff, upLeft));
+        }
+      }
+      default -> throw new IllegalArgumentException("Not a row filter: " + filter);
+    }
+  }
+
+  private static int paeth(int a, int b, int c) {
+    int p = a + b - c;
+    int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+    return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+  }
+
+  /**
+   * @return the sum of the filtered bytes taken as signed, stopping early once it's past the bound
+   */
+  private static long absoluteSum(byte[] filtered, long bound) {
+    long sum = 0;
+    for (int i = 0; i < filtered.length && sum < bound; i++) {
+      sum += Math.abs(filtered[i]);
+    }
+    return sum;
+  }
+
+  private byte[] deflateBlock(FilteredBlock block, FilteredBlock previous, boolean last) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      if (previous != null) {
+        int length = Math.min(DICTIONARY_SIZE, previous.data.length);
+        deflater.setDictionary(previous.data, previous.data.length - length, length);
+      }
+      deflater.setInput(block.data);
+      if (last) {
+        deflater.finish();
+      }
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(block.data.length / 2 + 64);
+      byte[] buffer = new byte[16 * 1024];
+      int flush = last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+      while (true) {
+        int count = deflater.deflate(buffer, 0, buffer.length, flush);
+        out.write(buffer, 0, count);
+        // a flush is complete once it leaves room in the buffer, a finish once the deflater says so
+        if (last ? deflater.finished() : count < buffer.length && deflater.needsInput()) {
+          return out.toByteArray();
+        }
+      }
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * zlib's adler32_combine: the checksum of two pieces put together, from the checksum of each one
+   */
+  private static long combineAdler(long adler1, long adler2, long length2) {
+    long remainder = length2 % ADLER_BASE;
+    long sum1 = adler1 & 0xffff;
+    long sum2 = (remainder * sum1) % ADLER_BASE;
+    sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+    sum2 += (adler1 >>> 16) + (adler2 >>> 16) + ADLER_BASE - remainder;
+    if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+    if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+    if (sum2 >= ((long) ADLER_BASE << 1)) sum2 -= ((long) ADLER_BASE << 1);
+    if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+    return sum1 | (sum2 << 16);
+  }
+
+  private byte[] zlibHeader() {
+    int levelFlag = level == Deflater.DEFAULT_COMPRESSION ? 2 : level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+    int cmf = 0x78; // deflate, 32K window
+    int flg = levelFlag << 6;
+    flg += 31 - ((cmf << 8) + flg) % 31;
+    return new byte[] {(byte) cmf, (byte) flg};
+  }
+
+  private static void writeHeader(DataOutputStream data, Rows rows) throws IOException {
+    ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+    DataOutputStream fields = new DataOutputStream(header);
+    fields.writeInt(rows.width);
+    fields.writeInt(rows.height);
+    fields.writeByte(8); // bit depth
+    fields.writeByte(rows.colorType);
+    fields.writeByte(0); // deflate
+    fields.writeByte(0); // adaptive filtering
+    fields.writeByte(0); // not interlaced
+    writeChunk(data, "IHDR", header.toByteArray(), header.size());
+  }
+
+  private static void writeChunk(DataOutputStream data, String type, byte[] content, int length) throws IOException {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(content, 0, length);
+    data.writeInt(length);
+    data.write(typeBytes);
+    data.write(content, 0, length);
+    data.writeInt((int) crc.getValue());
+  }
+
+
+  /**
+   * Cuts the zlib stream into IDAT chunks of a bounded size
+   */
+  private static final class IdatStream {
+    private final DataOutputStream data;
+    private final byte[] buffer = new byte[IDAT_SIZE];
+    private int count;
+
+    private IdatStream(DataOutputStream data) {
+      this.data = data;
+    }
+
+    void write(byte[] bytes) throws IOException {
+      int offset = 0;
+      while (offset < bytes.length) {
+        int length = Math.min(bytes.length - offset, buffer.length - count);
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+        offset += length;
+        if (count == buffer.length) {
+          flush();
+        }
+      }
+    }
+
+    void flush() throws IOException {
+      if (count > 0) {
+        writeChunk(data, "IDAT", buffer, count);
+        count = 0;
+      }
+    }
+  }
+
+
+  /**
+   * The image's rows as PNG samples: gray, RGB or RGBA bytes. 8 bits interleaved rasters are read straight from their
+   * buffer, anything else goes through getRGB.
+   */
+  private static final class Rows {
+    private final BufferedImage image;
+    private final int width;
+    private final int height;
+    private final int channels;
+    private final int colorType;
+    private final int rowBytes;
+
+    private final byte[] buffer; // null when going through getRGB
+    private int base;
+    private int pixelStride;
+    private int scanlineStride;
+    private int[] bandOffsets;
+
+    Rows(BufferedImage image) {
+      this.image = image;
+      this.width = image.getWidth();
+      this.height = image.getHeight();
+      if (width <= 0 || height <= 0) {
+        throw new IllegalArgumentException("Empty image: " + width + "x" + height);
+      }
+
+      ColorModel colorModel = image.getColorModel();
+      boolean alpha = colorModel.hasAlpha();
+      boolean gray = colorModel.getColorSpace().getType() == ColorSpace.TYPE_GRAY
+          && colorModel.getNumComponents() == 1;
+      Raster raster = image.getRaster();
+      boolean direct = colorModel instanceof ComponentColorModel
+          && !colorModel.isAlphaPremultiplied()
+          && Arrays.stream(colorModel.getComponentSize()).allMatch(size -> size == 8)
+          && raster.getDataBuffer().getDataType() == DataBuffer.TYPE_BYTE
+          && raster.getSampleModel() instanceof PixelInterleavedSampleModel
+          && (gray || colorModel.getColorSpace().isCS_sRGB());
+
+      if (direct) {
+        PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+        DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+        this.buffer = dataBuffer.getData();
+        this.pixelStride = sampleModel.getPixelStride();
+        this.scanlineStride = sampleModel.getScanlineStride();
+        this.base = dataBuffer.getOffset()
+            - raster.getSampleModelTranslateY() * scanlineStride
+            - raster.getSampleModelTranslateX() * pixelStride;
+        this.bandOffsets = sampleModel.getBandOffsets();
+        this.channels = colorModel.getNumComponents();
+        this.colorType = gray ? 0 : alpha ? 6 : 2;
+      } else {
+        this.buffer = null;
+        this.channels = alpha ? 4 : 3;
+        this.colorType = alpha ? 6 : 2;
+      }
+      this.rowBytes = width * channels;
+    }
+
+    void read(int y, byte[] row) {
+      if (buffer != null) {
+        int offset = base + y * scanlineStride;
+        for (int x = 0, i = 0; x < width; x++, offset += pixelStride) {
+          for (int c = 0; c < channels; c++) {
+            row[i++] = buffer[offset + bandOffsets[c]];
+          }
+        }
+      } else {
+        int[] argb = image.getRGB(0, y, width, 1, null, 0, width);
+        for (int x = 0, i = 0; x < width; x++) {
+          int pixel = argb[x];
+          row[i++] = (byte) (pixel >> 16);
+          row[i++] = (byte) (pixel >> 8);
+          row[i++] = (byte) pixel;
+          if (channels == 4) {
+            row[i++] = (byte) (pixel >>> 24);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package org.mars.cutter.io;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+
+final class PngCodec implements OutputCodec {
+
+  private final ParallelPngWriter writer;
+
+  PngCodec(ParallelPngWriter writer) {
+    this.writer = writer;
+  }
+
+  @Override
+  public String getExtension() {
+    return "png";
+  }
+
+  @Override
+  public void write(BufferedImage image, Path file) throws IOException {
+    writer.write(image, file);
+  }
+
+  @Override
+  public String toString() {
+    return "PNG level " + writer.getLevel() + ", " + writer.getFilter() + " filter";
+  }
+}
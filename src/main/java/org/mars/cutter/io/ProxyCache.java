@@ -0,0 +1,133 @@
+package org.mars.cutter.io;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import lombok.extern.slf4j.Slf4j;
+import org.mars.cutter.util.CacheDirectory;
+
+/**
+ * Proxy images kept on disk as raw rasters, so going back to a page reads a few megabytes straight into the image buffer
+ * instead of decoding and scaling the original again.
+ * <p>
+ * Entries are keyed by the {@link CacheDirectory#fileDigest(Path) original file} and the proxy dimension. An entry is a
+ * header followed by the pixels, row by row, as gray, BGR or ABGR bytes:
+ * <pre>
+ *   int magic, byte version, byte type, int original width, int original height, int width, int height, pixels
+ * </pre>
+ * The least recently used entries are evicted once the cache holds more bytes than its capacity. Cache failures are only
+ * logged, the original is just decoded again.
+ */
+@Slf4j
+public final class ProxyCache {
+
+  private static final int MAGIC = 0x49435058; // ICPX
+  private static final byte VERSION = 1;
+  private static final int HEADER_SIZE = Integer.BYTES * 5 + 2;
+  private static final String EXTENSION = ".raw";
+
+  /**
+   * @param originalSize the size of the image the proxy was scaled from
+   */
+  public record Proxy(BufferedImage image, Dimension originalSize) {}
+
+  private final CacheDirectory directory;
+
+  public ProxyCache(Path directory, long capacity) {
+    this.directory = new CacheDirectory(directory, EXTENSION, capacity);
+  }
+
+  /**
+   * @return the proxy of the original as it is now on disk, null if it's not in the cache
+   */
+  public Proxy get(Path original, int tempDimension) {
+    Path entryFile;
+    try {
+      entryFile = directory.resolve(entryKey(original, tempDimension));
+    } catch (IOException e) {
+      return null; // the original itself can't be read, its decoding will tell
+    }
+    try (FileChannel channel = FileChannel.open(entryFile, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      readFully(channel, header);
+      if (header.flip().getInt() != MAGIC || header.get() != VERSION) {
+        throw new IOException("Not a proxy cache entry of version " + VERSION);
+      }
+      int type = header.get();
+      Dimension originalSize = new Dimension(header.getInt(), header.getInt());
+      BufferedImage image = new BufferedImage(header.getInt(), header.getInt(), type);
+      byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+      if (channel.size() != HEADER_SIZE + pixels.length) {
+        throw new IOException("Truncated proxy cache entry");
+      }
+      readFully(channel, ByteBuffer.wrap(pixels));
+      directory.touch(entryFile);
+      return new Proxy(image, originalSize);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | RuntimeException e) {
+      log.warn("Dropping unreadable proxy cache entry: {}", entryFile, e);
+      directory.delete(entryFile);
+      return null;
+    }
+  }
+
+  public void put(Path original, int tempDimension, Proxy proxy) {
+    try {
+      BufferedImage image = storable(proxy.image());
+      byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+          .putInt(MAGIC)
+          .put(VERSION)
+          .put((byte) image.getType())
+          .putInt(proxy.originalSize().width)
+          .putInt(proxy.originalSize().height)
+          .putInt(image.getWidth())
+          .putInt(image.getHeight())
+          .flip();
+      directory.put(entryKey(original, tempDimension), header, ByteBuffer.wrap(pixels));
+    } catch (IOException | RuntimeException e) {
+      log.warn("Cannot write proxy cache entry: {}", original, e);
+    }
+  }
+
+  /**
+   * @return the image itself when its raster is a plain gray, BGR or ABGR byte array, a BGR or ABGR copy otherwise
+   */
+  private static BufferedImage storable(BufferedImage image) {
+    int type = image.getType();
+    if ((type == BufferedImage.TYPE_BYTE_GRAY || type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR)
+        && image.getRaster().getParent() == null
+        && ((DataBufferByte) image.getRaster().getDataBuffer()).getOffset() == 0) {
+      return image;
+    }
+    BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+        image.getColorModel().hasAlpha() ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR);
+    Graphics2D g = converted.createGraphics();
+    g.drawImage(image, 0, 0, null);
+    g.dispose();
+    return converted;
+  }
+
+  private static String entryKey(Path original, int tempDimension) throws IOException {
+    MessageDigest digest = CacheDirectory.fileDigest(original);
+    digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(0, tempDimension));
+    return CacheDirectory.key(digest);
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new IOException("Truncated proxy cache entry");
+      }
+    }
+  }
+}
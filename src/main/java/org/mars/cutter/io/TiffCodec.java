@@ -0,0 +1,31 @@
+package org.mars.cutter.io;
+
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+
+final class TiffCodec extends ImageIOCodec {
+
+  private final boolean deflate;
+
+  TiffCodec(boolean deflate) {
+    super("tiff", "tif");
+    this.deflate = deflate;
+  }
+
+  @Override
+  ImageWriteParam createParam(ImageWriter writer) {
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    if (deflate) {
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionType("Deflate");
+    } else {
+      param.setCompressionMode(ImageWriteParam.MODE_DISABLED);
+    }
+    return param;
+  }
+
+  @Override
+  public String toString() {
+    return "TIFF" + (deflate ? ", deflate" : ", uncompressed");
+  }
+}
@@ -8,14 +8,27 @@ import java.nio.file.Paths;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import org.mars.cutter.CutterService;
+import org.mars.cutter.io.OutputCodec;
 
 public class Application {
 
 
   public static final Path DEFAULT_ROOT = Paths.get("E:\\Photos Scans\\Kléber et Georgette\\A découper");
   private static boolean bypass = false;
+  private static final String CODEC_OPTION = "--codec=";
 
+  /**
+   * @param args optionally --codec=spec, how the crops are saved as {@link OutputCodec#parse(String)} reads it
+   */
   public static void main(String[] args) throws IOException {
+    OutputCodec outputCodec = OutputCodec.DEFAULT;
+    for (String arg : args) {
+      if(arg.startsWith(CODEC_OPTION)) {
+        outputCodec = OutputCodec.parse(arg.substring(CODEC_OPTION.length()));
+      } else {
+        throw new IllegalArgumentException("Unknown option: " + arg);
+      }
+    }
 
     GraphicsDevice screenDevice = ScreenUtils.getDefaultScreenDevice();
     Rectangle screenBounds = ScreenUtils.getBounds(screenDevice);
@@ -25,7 +38,7 @@ public class Application {
 
     Path rootDir;
     if((rootDir = chooseDir(DEFAULT_ROOT)) != null) {
-      CutterService service = new CutterService(rootDir);
+      CutterService service = new CutterService(rootDir, outputCodec);
       CutterDialog cutterDialog = new CutterDialog(service);
       cutterDialog.setSize(winWidth, winHeight);
       cutterDialog.setLocation((screenBounds.width-winWidth)/2, 0);
@@ -9,7 +9,12 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -17,10 +22,13 @@ import org.mars.cutter.CutterService;
 import org.mars.cutter.DetectionParams;
 import org.mars.cutter.ImageContext;
 import org.mars.cutter.Quadri;
+import org.mars.cutter.domain.Outline;
 
 @Slf4j
 public class CutterController implements Serializable {
 
+  public static final int LIVE_DETECTION_DELAY = 400; // ms without any edit before the live detection starts
+
   private final CutterService service;
   private final CutterDialog cutterDialog;
 
@@ -31,6 +39,11 @@ public class CutterController implements Serializable {
 
   private ImageContext currentContext;
 
+  private final Timer liveDetectionTimer;
+  private CompletableFuture<Outline> liveDetection;
+  private CompletableFuture<ImageContext> pendingAnalysis;
+  private CompletableFuture<Void> pendingConfirmation;
+
 
   @Getter
   private org.opencv.core.Point mousePointer;
@@ -43,9 +56,13 @@ public class CutterController implements Serializable {
     this.jQuadrisPanel = requireNonNull(cutterDialog.jQuadrisPanel);
     this.jLookingGlass = requireNonNull(cutterDialog.jLookingGlass);
     this.jControlsPanel = requireNonNull(cutterDialog.jControlsPanel);
+
+    this.liveDetectionTimer = new Timer(LIVE_DETECTION_DELAY, e -> detectLive());
+    liveDetectionTimer.setRepeats(false);
   }
 
   private void cleanImage() {
+    cancelLiveDetection();
     if (currentContext != null) {
       try {
         currentContext.clean();
@@ -97,35 +114,135 @@ public class CutterController implements Serializable {
     return jControlsPanel.getDetectionParams();
   }
 
+  /**
+   * Restarts the live detection countdown, if enabled
+   */
+  public void paramsChanged() {
+    if (currentContext != null && jControlsPanel.isLiveDetection()) {
+      liveDetectionTimer.restart();
+    }
+  }
+
+  private void detectLive() {
+    cancelLiveDetection();
+    ImageContext context = currentContext;
+    if (context == null) {
+      return;
+    }
+
+    CompletableFuture<Outline> detection = service.redetect(context, getDetectionParams());
+    liveDetection = detection;
+    detection.whenComplete((outline, failure) -> SwingUtilities.invokeLater(() -> {
+      if (detection != liveDetection || context != currentContext) {
+        return; // superseded by a newer edit or another image
+      }
+      liveDetection = null;
+      if (failure == null) {
+        context.setOutline(outline);
+        refreshQuadris();
+      } else if (!(failure instanceof CancellationException)) {
+        log.error("Live detection failed on: {}", context.getFile(), failure);
+      }
+    }));
+  }
+
+  private void cancelLiveDetection() {
+    liveDetectionTimer.stop();
+    if (liveDetection != null) {
+      liveDetection.cancel(true);
+      liveDetection = null;
+    }
+  }
+
+  private void refreshQuadris() {
+    jImage.setImage(currentContext.getTempImage()); // forgets the former quadris
+    rebuildJQuadrisSetup();
+    jQuadrisPanel.revalidate();
+    repaintImage();
+  }
+
   public void reset() {
-    try {
-      setContext(service.reset(getDetectionParams()));
-    } catch (IOException e) {
-      JOptionPane.showMessageDialog(cutterDialog, e.getMessage());
-      skip();
+    if (currentContext == null) {
+      return; // nothing shown yet
     }
+    analyze(service.reset(currentContext, getDetectionParams()), "Couldn't reset");
   }
 
   public void skip() {
-    try {
-      ImageContext imageContext = service.skip(getDetectionParams());
-      if (imageContext != null) {
-        setContext(imageContext);
-      } else {
-        cleanImage();
-        JOptionPane.showMessageDialog(cutterDialog, "Finished!");
-        cutterDialog.dispose();
-        System.exit(0);
-      }
-    } catch (IOException e) {
-      JOptionPane.showMessageDialog(cutterDialog, "Couldn't skip: " + e.getMessage());
-      skip();
+    if (pendingConfirmation != null) {
+      return; // moves on by itself once the crops are admitted
     }
+    if (currentContext != null) {
+      service.remember(currentContext); // along with the operator's edits
+    }
+    cleanImage(); // so the image being left can't be validated again while the next one loads
+    analyze(service.skip(getDetectionParams()), "Couldn't skip");
   }
 
+  /**
+   * Shows the analyzed image once ready, cancelling any analysis still running: only the latest one matters.
+   */
+  private void analyze(CompletableFuture<ImageContext> analysis, String errorMessage) {
+    cancelLiveDetection();
+    if (pendingAnalysis != null) {
+      pendingAnalysis.cancel(true);
+    }
+    pendingAnalysis = analysis;
+    jControlsPanel.setBusy(true);
+
+    analysis.whenComplete((imageContext, failure) -> SwingUtilities.invokeLater(() -> {
+      if (analysis != pendingAnalysis) {
+        if (imageContext != null && imageContext != currentContext) {
+          CutterService.clean(imageContext); // superseded by another skip or reset, it won't be shown
+        }
+        return;
+      }
+      pendingAnalysis = null;
+      jControlsPanel.setBusy(false);
+
+      if (failure == null) {
+        if (imageContext == currentContext) {
+          refreshQuadris(); // reset, the context is kept along with its memoized detection stages
+        } else if (imageContext != null) {
+          setContext(imageContext);
+        } else {
+          cleanImage();
+          JOptionPane.showMessageDialog(cutterDialog, "Finished!");
+          cutterDialog.dispose();
+          System.exit(0);
+        }
+      } else if (!(failure instanceof CancellationException)) {
+        Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+        log.error(errorMessage, cause);
+        JOptionPane.showMessageDialog(cutterDialog, errorMessage + ": " + cause.getMessage());
+        skip();
+      }
+    }));
+  }
+
+  /**
+   * Moves on once the crops are admitted, so the operator can't stack up more of them than the memory allows
+   */
   public void confirm() {
-    service.confirm(currentContext);
-    skip();
+    if (currentContext == null || pendingConfirmation != null) {
+      return; // still loading, or already validated
+    }
+    ImageContext context = currentContext;
+    CompletableFuture<Void> confirmation = service.confirm(context);
+    pendingConfirmation = confirmation;
+    jControlsPanel.setBusy(true, "Waiting for crops...", false);
+
+    confirmation.whenComplete((v, failure) -> SwingUtilities.invokeLater(() -> {
+      pendingConfirmation = null;
+      jControlsPanel.setBusy(false);
+      if (failure != null) {
+        log.error("Couldn't crop: {}", context.getFile(), failure);
+      }
+      if (context == currentContext) {
+        cleanImage(); // not remembered, the crops rename the file so its cache entry would never be found again
+      }
+      skip();
+    }));
   }
 
   public void centerOn(Point point) {
@@ -194,6 +311,9 @@ public class CutterController implements Serializable {
   }
 
   public void addGenericQuadri() {
+    if (currentContext == null) {
+      return; // still loading
+    }
     Quadri newQuadri = createGenericQuadri();
     addQuadri(newQuadri, true);
   }
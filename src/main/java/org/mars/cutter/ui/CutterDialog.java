@@ -61,6 +61,7 @@ public class CutterDialog extends JFrame implements KeyEventDispatcher {
     jControlsPanel.resetButton.addActionListener(e -> controller.reset());
     jControlsPanel.skipButton.addActionListener(e -> controller.skip());
     jControlsPanel.confirmButton.addActionListener(e -> controller.confirm());
+    jControlsPanel.addParamsListener(controller::paramsChanged);
 
     jImage.addMouseOperationsListener(new JQuadriDragger(controller));
     jQuadriResizer = new JQuadriResizer(controller);
@@ -2,13 +2,18 @@ package org.mars.cutter.ui;
 
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
+import java.util.List;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import org.mars.cutter.DetectionParams;
 
 public class JControlsPanel extends JPanel {
   private final JLabel fileNameLabel = new JLabel("fileName");
+  private final JProgressBar analysisProgressBar = new JProgressBar();
 
   protected final JButton resetButton;
   protected final JButton skipButton;
@@ -18,6 +23,7 @@ public class JControlsPanel extends JPanel {
   private final DoubleField cannyRatioInput;
   private final IntegerField houghThresholdInput;
   private final DoubleField angleThresholdInput;
+  private final JCheckBox liveDetectionCheckBox;
 
 
   public JControlsPanel(DetectionParams params) {
@@ -30,6 +36,13 @@ public class JControlsPanel extends JPanel {
     JLabel angleThresholdLabel = new JLabel("A.thresh");
     angleThresholdInput = new DoubleField("#.################", 8, params.getHvAngleTolerance());
 
+    liveDetectionCheckBox = new JCheckBox("Live");
+    liveDetectionCheckBox.setToolTipText("Detect again as soon as a parameter is edited");
+
+    analysisProgressBar.setIndeterminate(true);
+    analysisProgressBar.setStringPainted(true);
+    analysisProgressBar.setVisible(false);
+
     resetButton = new JButton("Start Over");
     skipButton = new JButton("Skip");
     confirmButton = new JButton("Validate");
@@ -38,6 +51,7 @@ public class JControlsPanel extends JPanel {
     GridBagConstraints westConstraints = westGridBagConstraints();
     GridBagConstraints eastConstraints = eastGridBagConstraints();
     this.add(fileNameLabel, westConstraints);
+    this.add(analysisProgressBar, eastConstraints);
     this.add(cannyThresholdLabel, eastConstraints);
     this.add(cannyThresholdInput, eastConstraints);
     this.add(cannyRatioLabel, eastConstraints);
@@ -46,6 +60,7 @@ public class JControlsPanel extends JPanel {
     this.add(houghThresholdInput, eastConstraints);
     this.add(angleThresholdLabel, eastConstraints);
     this.add(angleThresholdInput, eastConstraints);
+    this.add(liveDetectionCheckBox, eastConstraints);
     this.add(resetButton, eastConstraints);
     this.add(skipButton, eastConstraints);
     this.add(confirmButton, eastConstraints);
@@ -55,6 +70,39 @@ public class JControlsPanel extends JPanel {
     fileNameLabel.setText(fileName);
   }
 
+  /**
+   * Shows the progress bar while an image is being analyzed, the current image can't be reset nor validated meanwhile
+   */
+  public void setBusy(boolean busy) {
+    setBusy(busy, "Analyzing...", true);
+  }
+
+  /**
+   * @param activity what's in progress
+   * @param skippable whether the operator may skip meanwhile
+   */
+  public void setBusy(boolean busy, String activity, boolean skippable) {
+    analysisProgressBar.setString(activity);
+    analysisProgressBar.setVisible(busy);
+    resetButton.setEnabled(!busy);
+    skipButton.setEnabled(!busy || skippable);
+    confirmButton.setEnabled(!busy);
+    revalidate();
+  }
+
+  public boolean isLiveDetection() {
+    return liveDetectionCheckBox.isSelected();
+  }
+
+  /**
+   * @param listener notified whenever one of the detection parameters is edited
+   */
+  public void addParamsListener(Runnable listener) {
+    for (JFormattedTextField input : List.of(cannyThresholdInput, cannyRatioInput, houghThresholdInput, angleThresholdInput)) {
+      input.addPropertyChangeListener("value", e -> listener.run());
+    }
+  }
+
   private static GridBagConstraints westGridBagConstraints() {
     GridBagConstraints c = new GridBagConstraints();
     c.weightx = 0.8;
@@ -76,7 +124,8 @@ public class JControlsPanel extends JPanel {
       cannyRatioInput.getDouble(),
       DetectionParams.HOUGH_THETA,
       houghThresholdInput.getInt(),
-      angleThresholdInput.getDouble()
+      angleThresholdInput.getDouble(),
+      DetectionParams.CARDINAL_HOUGH
     );
   }
 }
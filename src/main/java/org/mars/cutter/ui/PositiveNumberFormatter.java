@@ -8,6 +8,7 @@ public class PositiveNumberFormatter extends NumberFormatter {
 
   public PositiveNumberFormatter(DecimalFormat decimalFormat) {
     super(decimalFormat);
+    setCommitsOnValidEdit(true); // so the live detection sees edits as they're typed
   }
 
   @Override
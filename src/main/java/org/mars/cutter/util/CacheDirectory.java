@@ -0,0 +1,213 @@
+package org.mars.cutter.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A directory of cache entries, one file per key, holding no more bytes than its capacity.
+ * <p>
+ * Entries are written to a temporary file first then moved in place, so a reader never sees half of one. Reading an entry
+ * touches it, and the least recently used ones are deleted once the directory holds more than the capacity. Temporary files
+ * a crash left behind are deleted when the directory is opened.
+ * <p>
+ * Keys are SHA-256 digests, cut to 128 bits: {@link #fileDigest(Path)} starts one for entries about a file, the caches
+ * then hash what else their entries depend on.
+ */
+@Slf4j
+public final class CacheDirectory {
+
+  private static final String TEMP_EXTENSION = ".tmp";
+  private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+  @Getter
+  private final Path directory;
+  private final String extension;
+  @Getter
+  private final long capacity;
+  private long size = -1; // bytes of all the entries, known once the directory is scanned
+
+  public CacheDirectory(Path directory, String extension, long capacity) {
+    this.directory = directory;
+    this.extension = extension;
+    this.capacity = capacity;
+    deleteStaleTempFiles();
+  }
+
+  /**
+   * Temporary files left by a write that never got to its move, the application having stopped meanwhile. Only old ones
+   * are deleted, in case another instance is writing to the same directory.
+   */
+  private void deleteStaleTempFiles() {
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+    long staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+    try (Stream<Path> files = Files.list(directory)) {
+      files.filter(file -> file.getFileName().toString().endsWith(TEMP_EXTENSION))
+          .filter(file -> lastModified(file).toMillis() < staleBefore)
+          .forEach(file -> {
+            try {
+              Files.deleteIfExists(file);
+              log.debug("Deleted stale cache temp file: {}", file);
+            } catch (IOException e) {
+              log.warn("Cannot delete stale cache temp file: {}", file, e);
+            }
+          });
+    } catch (IOException e) {
+      log.warn("Cannot list cache directory: {}", directory, e);
+    }
+  }
+
+  public static MessageDigest digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // every JRE has it
+    }
+  }
+
+  /**
+   * @return a digest of the file's absolute path, last modified time and size, so an entry keyed by it is never found
+   * again once the file is moved, renamed or edited
+   */
+  public static MessageDigest fileDigest(Path file) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    MessageDigest digest = digest();
+    digest.update(file.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+    digest.update(ByteBuffer.allocate(Long.BYTES * 2)
+        .putLong(attributes.lastModifiedTime().toMillis())
+        .putLong(attributes.size())
+        .flip());
+    return digest;
+  }
+
+  public static String key(MessageDigest digest) {
+    return HexFormat.of().formatHex(digest.digest(), 0, 16);
+  }
+
+  /**
+   * @return the file of the entry, which may not exist
+   */
+  public Path resolve(String key) {
+    return directory.resolve(key + extension);
+  }
+
+  /**
+   * Marks the entry as just used, so it's evicted last
+   */
+  public void touch(Path entry) {
+    try {
+      Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      log.debug("Cannot touch cache entry: {}", entry);
+    }
+  }
+
+  /**
+   * Writes the entry, replacing any former one, then evicts what no longer fits
+   */
+  public void put(String key, ByteBuffer... content) throws IOException {
+    Files.createDirectories(directory);
+    Path tempFile = Files.createTempFile(directory, key, TEMP_EXTENSION);
+    long written = 0;
+    try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+      long remaining = 0;
+      for (ByteBuffer buffer : content) {
+        remaining += buffer.remaining();
+      }
+      while (written < remaining) {
+        written += channel.write(content);
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(tempFile);
+      throw e;
+    }
+    commit(tempFile, resolve(key), written);
+  }
+
+  private synchronized void commit(Path tempFile, Path entry, long bytes) throws IOException {
+    long formerBytes = Files.exists(entry) ? Files.size(entry) : 0;
+    Files.move(tempFile, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    if (size < 0) {
+      size = scanSize();
+    } else {
+      size += bytes - formerBytes;
+    }
+    evict();
+  }
+
+  /**
+   * @return whether the entry was there to be deleted
+   */
+  public synchronized boolean delete(Path entry) {
+    try {
+      long bytes = Files.exists(entry) ? Files.size(entry) : 0;
+      boolean deleted = Files.deleteIfExists(entry);
+      if (deleted && size >= 0) {
+        size -= bytes;
+      }
+      return deleted;
+    } catch (IOException e) {
+      log.warn("Cannot delete cache entry: {}", entry, e);
+      return false;
+    }
+  }
+
+  private List<Path> entries() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.getFileName().toString().endsWith(extension)).toList();
+    }
+  }
+
+  private long scanSize() throws IOException {
+    long total = 0;
+    for (Path entry : entries()) {
+      total += Files.size(entry);
+    }
+    return total;
+  }
+
+  /**
+   * Deletes the least recently used entries until the directory fits in its capacity
+   */
+  private void evict() throws IOException {
+    if (size <= capacity) {
+      return;
+    }
+    List<Path> entries = new ArrayList<>(entries());
+    entries.sort(Comparator.comparing(CacheDirectory::lastModified));
+    for (Path entry : entries) {
+      if (size <= capacity) {
+        break;
+      }
+      if (delete(entry)) {
+        log.debug("Evicted cache entry: {}", entry);
+      }
+    }
+  }
+
+  private static FileTime lastModified(Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0); // gone already, evicted first
+    }
+  }
+}
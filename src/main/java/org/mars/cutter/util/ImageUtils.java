@@ -7,6 +7,7 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.MediaTracker;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Transparency;
 import java.awt.color.ColorSpace;
@@ -21,9 +22,12 @@ import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Path;
 import java.util.Hashtable;
 import java.util.Iterator;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
 import javax.imageio.spi.IIORegistry;
 import javax.imageio.spi.ImageReaderSpi;
 import javax.imageio.stream.ImageInputStream;
@@ -65,6 +69,60 @@ public class ImageUtils {
     return null;
   }
 
+  /**
+   * Same as ImageIO.read, failing rather than returning null when no reader handles the file
+   */
+  public static BufferedImage read(Path file) throws IOException {
+    BufferedImage image = ImageIO.read(file.toFile());
+    if (image == null) {
+      throw new IOException("Unreadable image: " + file);
+    }
+    return image;
+  }
+
+  /**
+   * @return the image dimensions, read from its header only
+   */
+  public static Dimension readSize(Path file) throws IOException {
+    try (ImageInputStream stream = ImageIO.createImageInputStream(file.toFile())) {
+      ImageReader reader = getReader(stream, file);
+      try {
+        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * @return only that region of the image, which readers supporting it decode alone
+   */
+  public static BufferedImage readRegion(Path file, Rectangle region) throws IOException {
+    try (ImageInputStream stream = ImageIO.createImageInputStream(file.toFile())) {
+      ImageReader reader = getReader(stream, file);
+      try {
+        ImageReadParam readParam = reader.getDefaultReadParam();
+        readParam.setSourceRegion(region);
+        return reader.read(0, readParam);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * @return a reader for the first image of the stream, its input set. To be disposed of by the caller.
+   */
+  public static ImageReader getReader(ImageInputStream stream, Path file) throws IOException {
+    Iterator<ImageReader> readers = stream != null ? ImageIO.getImageReaders(stream) : null;
+    if (readers == null || !readers.hasNext()) {
+      throw new IOException("Unreadable image: " + file);
+    }
+    ImageReader reader = readers.next();
+    reader.setInput(stream, true, true);
+    return reader;
+  }
+
   // ==============================================================================
   // ==============================================================================
 
@@ -136,6 +194,12 @@ public class ImageUtils {
     return bufferedImage;
   }
 
+  public static BufferedImage copy(BufferedImage source) {
+    ColorModel colorModel = source.getColorModel();
+    WritableRaster raster = source.copyData(source.getRaster().createCompatibleWritableRaster());
+    return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), new Hashtable<>());
+  }
+
   public static ByteBuffer getByteBuffer(BufferedImage bufferedImage) {
     Raster raster = bufferedImage.getRaster();
     DataBufferByte dataBufferByte = (DataBufferByte) raster.getDataBuffer();
@@ -0,0 +1,76 @@
+package org.mars.cutter.util;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Hands BufferedImage pixels over to OpenCV without going through an encoded file.
+ */
+public final class MatUtils {
+
+  private MatUtils() {}
+
+  /**
+   * @return a BGR (or single channel gray) Mat holding the pixels of the image, the same layout Imgcodecs.imread() would give
+   */
+  public static Mat toMat(BufferedImage image) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+
+    switch (image.getType()) {
+      case BufferedImage.TYPE_3BYTE_BGR:
+        return put(new Mat(height, width, CvType.CV_8UC3), image.getRaster());
+      case BufferedImage.TYPE_BYTE_GRAY:
+        return put(new Mat(height, width, CvType.CV_8UC1), image.getRaster());
+      default:
+        break;
+    }
+
+    // images built from a ComponentColorModel (see ImageUtils.createBufferedImage) are interleaved RGB(A) bytes
+    Raster raster = image.getRaster();
+    SampleModel sampleModel = raster.getSampleModel();
+    if (raster.getDataBuffer() instanceof DataBufferByte
+        && sampleModel instanceof PixelInterleavedSampleModel interleaved
+        && interleaved.getPixelStride() == interleaved.getNumBands()
+        && interleaved.getScanlineStride() == width * interleaved.getNumBands()) {
+      int conversion = findConversion(interleaved.getBandOffsets());
+      if (conversion >= 0) {
+        Mat mat = put(new Mat(height, width, CvType.CV_8UC(interleaved.getNumBands())), raster);
+        Mat bgr = new Mat();
+        Imgproc.cvtColor(mat, bgr, conversion);
+        mat.release();
+        return bgr;
+      }
+    }
+
+    // anything else (packed ints, indexed...) gets redrawn once
+    BufferedImage bgrImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    Graphics2D g = bgrImage.createGraphics();
+    g.drawImage(image, 0, 0, null);
+    g.dispose();
+    return put(new Mat(height, width, CvType.CV_8UC3), bgrImage.getRaster());
+  }
+
+  private static Mat put(Mat mat, Raster raster) {
+    byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+    mat.put(0, 0, data);
+    return mat;
+  }
+
+  private static int findConversion(int[] bandOffsets) {
+    if (bandOffsets.length == 3 && bandOffsets[0] == 0 && bandOffsets[1] == 1 && bandOffsets[2] == 2) {
+      return Imgproc.COLOR_RGB2BGR;
+    } else if (bandOffsets.length == 4 && bandOffsets[0] == 0 && bandOffsets[1] == 1 && bandOffsets[2] == 2 && bandOffsets[3] == 3) {
+      return Imgproc.COLOR_RGBA2BGR;
+    } else {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package org.mars.cutter.util;
+
+import lombok.Getter;
+
+/**
+ * An amount of bytes shared by tasks holding part of it while they run, so the memory they take altogether stays bounded.
+ */
+public final class MemoryBudget {
+
+  @Getter
+  private final long capacity;
+  private long used;
+
+  public MemoryBudget(long capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+    }
+    this.capacity = capacity;
+  }
+
+  /**
+   * @return whether the bytes could be reserved without exceeding the capacity
+   */
+  public synchronized boolean tryAcquire(long bytes) {
+    if (used + bytes > capacity) {
+      return false;
+    }
+    used += bytes;
+    return true;
+  }
+
+  /**
+   * Waits until the bytes can be reserved. More bytes than the capacity are reserved once nothing else is, so they don't wait forever.
+   */
+  public synchronized void acquire(long bytes) throws InterruptedException {
+    while (used > 0 && used + bytes > capacity) {
+      wait();
+    }
+    used += bytes;
+  }
+
+  public synchronized void release(long bytes) {
+    used = Math.max(0, used - bytes);
+    notifyAll();
+  }
+
+  public synchronized long getUsed() {
+    return used;
+  }
+}
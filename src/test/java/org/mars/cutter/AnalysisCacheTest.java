@@ -0,0 +1,132 @@
+package org.mars.cutter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mars.cutter.domain.Bounds;
+import org.mars.cutter.domain.HVHoughs;
+import org.mars.cutter.domain.Hough;
+import org.mars.cutter.domain.Rotation;
+import org.opencv.core.Point;
+
+class AnalysisCacheTest {
+
+  private static final DetectionParams OTHER_PARAMS = new DetectionParams(DetectionParams.TEMP_DIMENSION,
+      DetectionParams.CANNY_THRESHOLD + 1, DetectionParams.CANNY_RATIO, DetectionParams.HOUGH_THETA,
+      DetectionParams.HOUGH_THRESHOLD, DetectionParams.HV_THRESHOLD, DetectionParams.CARDINAL_HOUGH);
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void keysTheFileByPathTimeAndContent() throws IOException {
+    Path image = image("image.bmp", 1_000_000);
+    String key = AnalysisCache.fileKey(image);
+    assertEquals(key, AnalysisCache.fileKey(image));
+
+    Path copy = Files.copy(image, dir.resolve("copy.bmp"), StandardCopyOption.COPY_ATTRIBUTES);
+    assertNotEquals(key, AnalysisCache.fileKey(copy), "same content elsewhere");
+
+    Files.setLastModifiedTime(image, FileTime.fromMillis(Files.getLastModifiedTime(image).toMillis() - 60_000));
+    assertNotEquals(key, AnalysisCache.fileKey(image), "touched");
+
+    FileTime time = Files.getLastModifiedTime(image);
+    key = AnalysisCache.fileKey(image);
+    byte[] content = Files.readAllBytes(image);
+    content[content.length - 1]++;
+    Files.write(image, content);
+    Files.setLastModifiedTime(image, time);
+    assertNotEquals(key, AnalysisCache.fileKey(image), "edited at the same time");
+  }
+
+  @Test
+  void readsBackWhatItWrote() throws IOException {
+    AnalysisCache cache = new AnalysisCache(dir.resolve("cache"), 1 << 20);
+    String key = AnalysisCache.fileKey(image("image.bmp", 1000));
+    AnalysisCache.Entry entry = entry();
+    cache.put(key, DetectionParams.DEFAULTS, entry);
+
+    AnalysisCache.Entry read = cache.get(key, DetectionParams.DEFAULTS);
+    assertNotNull(read);
+    assertEquals(lines(entry.hvHoughs().horizontals()), lines(read.hvHoughs().horizontals()));
+    assertEquals(lines(entry.hvHoughs().verticals()), lines(read.hvHoughs().verticals()));
+    Bounds bounds = read.bounds().get(0);
+    assertSame(read.hvHoughs().horizontals().get(0), bounds.h1(), "bounds made of the lines themselves");
+    assertSame(read.hvHoughs().verticals().get(1), bounds.v2());
+    assertEquals(entry.bounds().get(0).toPoints().toString(), bounds.toPoints().toString());
+
+    Quadri quadri = entry.quadris().get(0), readQuadri = read.quadris().get(0);
+    assertEquals(quadri.getName(), readQuadri.getName());
+    assertEquals(quadri.toPoints().toString(), readQuadri.toPoints().toString());
+    assertEquals(quadri.getRotation(), readQuadri.getRotation());
+    assertEquals(quadri.getColor(), readQuadri.getColor());
+
+    assertNull(cache.get(key, OTHER_PARAMS), "detected with other params");
+  }
+
+  @Test
+  void findsTheEditsWhateverTheParams() throws IOException {
+    AnalysisCache cache = new AnalysisCache(dir.resolve("cache"), 1 << 20);
+    String key = AnalysisCache.fileKey(image("image.bmp", 1000));
+    AnalysisCache.Entry detected = new AnalysisCache.Entry(entry().hvHoughs(), List.of(), List.of());
+    cache.put(key, DetectionParams.DEFAULTS, detected);
+
+    cache.putEdits(key, entry());
+    assertEquals(1, cache.get(key, DetectionParams.DEFAULTS).quadris().size());
+    assertEquals(1, cache.get(key, OTHER_PARAMS).quadris().size());
+
+    cache.deleteEdits(key);
+    assertEquals(0, cache.get(key, DetectionParams.DEFAULTS).quadris().size());
+    assertNull(cache.get(key, OTHER_PARAMS));
+  }
+
+  @Test
+  void dropsUnreadableEntries() throws IOException {
+    AnalysisCache cache = new AnalysisCache(dir.resolve("cache"), 1 << 20);
+    String key = AnalysisCache.fileKey(image("image.bmp", 1000));
+    cache.put(key, DetectionParams.DEFAULTS, entry());
+    try (Stream<Path> entries = Files.list(dir.resolve("cache"))) {
+      for (Path entry : entries.toList()) {
+        Files.write(entry, new byte[] {1, 2, 3});
+      }
+    }
+    assertNull(cache.get(key, DetectionParams.DEFAULTS));
+    try (Stream<Path> entries = Files.list(dir.resolve("cache"))) {
+      assertEquals(0, entries.count());
+    }
+  }
+
+  private Path image(String name, int size) throws IOException {
+    byte[] content = new byte[size];
+    new Random(5).nextBytes(content);
+    return Files.write(dir.resolve(name), content);
+  }
+
+  private static AnalysisCache.Entry entry() {
+    Hough top = new Hough(10, Math.PI / 2), bottom = new Hough(200, Math.PI / 2 + 0.001);
+    Hough left = new Hough(5, 0), right = new Hough(300, 0.002);
+    HVHoughs hvHoughs = new HVHoughs(List.of(top, bottom), List.of(left, right));
+    Bounds bounds = new Bounds(top, bottom, left, right);
+    Quadri quadri = new Quadri("Photo 1", new Point(5, 10), new Point(300, 10.5), new Point(299.6, 200), new Point(5.2, 199.8),
+        new Color(10, 20, 30, 40), Rotation.CLOCK);
+    return new AnalysisCache.Entry(hvHoughs, List.of(bounds), List.of(quadri));
+  }
+
+  private static List<String> lines(List<Hough> lines) {
+    return lines.stream().map(line -> line.getRho() + "/" + line.getTheta()).toList();
+  }
+}
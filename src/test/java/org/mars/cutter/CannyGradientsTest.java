@@ -0,0 +1,78 @@
+package org.mars.cutter;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Random;
+import nu.pattern.OpenCV;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.mars.cutter.domain.EdgeMap;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The cached gradients and their hysteresis against Imgproc.Canny(gray, edges, low, high, 3, true)
+ */
+class CannyGradientsTest {
+
+  @BeforeAll
+  static void loadOpenCV() {
+    OpenCV.loadShared();
+  }
+
+  @Test
+  void findsTheEdgesOpenCVFinds() {
+    Mat gray = gray(203, 151);
+    try {
+      CannyGradients gradients = CannyGradients.of(gray);
+      double[][] thresholds = {{DetectionParams.CANNY_THRESHOLD, DetectionParams.CANNY_THRESHOLD * DetectionParams.CANNY_RATIO},
+          {10, 30}, {50, 100}, {100, 50}, {0, 0}, {200, 1000}};
+      for (double[] pair : thresholds) {
+        EdgeMap edges = gradients.hysteresis(pair[0], pair[1]);
+        assertArrayEquals(canny(gray, pair[0], pair[1]), edges.getPixels(), "thresholds " + pair[0] + ", " + pair[1]);
+      }
+    } finally {
+      gray.release();
+    }
+  }
+
+  /**
+   * Shaded rectangles and a disk on a gradient background, plus noise, so there are edges of every strength
+   */
+  private static Mat gray(int width, int height) {
+    byte[] pixels = new byte[width * height];
+    Random random = new Random(11);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int value = x / 2 + y / 3;
+        if (x > 20 && x < 120 && y > 15 && y < 90) {
+          value = 200 - y;
+        }
+        if (x > 140 && x < 190 && y > 30 && y < 140) {
+          value = 60 + x / 4;
+        }
+        if ((x - 80) * (x - 80) + (y - 110) * (y - 110) < 900) {
+          value = 240;
+        }
+        value += random.nextInt(21) - 10;
+        pixels[y * width + x] = (byte) Math.clamp(value, 0, 255);
+      }
+    }
+    Mat gray = new Mat(height, width, CvType.CV_8UC1);
+    gray.put(0, 0, pixels);
+    return gray;
+  }
+
+  private static byte[] canny(Mat gray, double low, double high) {
+    Mat edges = new Mat();
+    try {
+      Imgproc.Canny(gray, edges, low, high, 3, true);
+      byte[] pixels = new byte[(int) edges.total()];
+      edges.get(0, 0, pixels);
+      return pixels;
+    } finally {
+      edges.release();
+    }
+  }
+}
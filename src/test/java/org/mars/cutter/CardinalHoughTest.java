@@ -0,0 +1,121 @@
+package org.mars.cutter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import nu.pattern.OpenCV;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.mars.cutter.domain.EdgeMap;
+import org.mars.cutter.domain.Hough;
+import org.mars.cutter.domain.HoughVotes;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The cardinal Hough transform and its votes against OpenCV's standard Hough transform, once the lines away from the
+ * horizontal and vertical are left out of both
+ */
+class CardinalHoughTest {
+
+  private static final double THETA_STEP = DetectionParams.HOUGH_THETA;
+  private static final double ANGLE_TOLERANCE = DetectionParams.HV_THRESHOLD;
+  private static final int FLOOR = DetectionParams.HOUGH_THRESHOLD_FLOOR;
+
+  private record Line(float rho, float theta, int votes) {}
+
+  @BeforeAll
+  static void loadOpenCV() {
+    OpenCV.loadShared();
+  }
+
+  @Test
+  void findsTheLinesOpenCVFinds() {
+    EdgeMap edges = edges();
+    List<Line> expected = cardinal(houghLines(edges, FLOOR));
+    assertFalse(expected.isEmpty());
+    assertEquals(expected, cardinal(lines(CardinalHough.vote(edges, THETA_STEP, FLOOR, ANGLE_TOLERANCE))));
+  }
+
+  @Test
+  void filteringTheVotesFindsTheLinesOfAHigherThreshold() {
+    EdgeMap edges = edges();
+    HoughVotes votes = CardinalHough.vote(edges, THETA_STEP, FLOOR, ANGLE_TOLERANCE);
+    for (int threshold : new int[] {FLOOR, 150, 250, DetectionParams.HOUGH_THRESHOLD}) {
+      assertTrue(votes.covers(threshold, ANGLE_TOLERANCE));
+      List<Line> expected = cardinal(houghLines(edges, threshold)).stream().map(line -> new Line(line.rho(), line.theta(), 0)).toList();
+      List<Line> actual = votes.lines(threshold).stream().map(line -> new Line((float) line.getRho(), (float) line.getTheta(), 0)).toList();
+      assertEquals(expected, cardinal(actual), "threshold " + threshold);
+    }
+    assertFalse(votes.covers(FLOOR - 1, ANGLE_TOLERANCE));
+    assertFalse(votes.covers(FLOOR, ANGLE_TOLERANCE * 2));
+  }
+
+  /**
+   * A few long lines slightly off the horizontal and vertical, a couple of diagonal ones, and some noise
+   */
+  private static EdgeMap edges() {
+    int width = 400, height = 300;
+    byte[] pixels = new byte[width * height];
+    Random random = new Random(7);
+    for (int i = 0; i < pixels.length / 50; i++) {
+      pixels[random.nextInt(pixels.length)] = (byte) 255;
+    }
+    drawLine(pixels, width, 20, 50, 380, 50);
+    drawLine(pixels, width, 10, 200, 390, 203);
+    drawLine(pixels, width, 150, 120, 260, 121);
+    drawLine(pixels, width, 60, 10, 60, 290);
+    drawLine(pixels, width, 330, 15, 332, 285);
+    drawLine(pixels, width, 100, 40, 101, 170);
+    drawLine(pixels, width, 0, 0, 299, 299);
+    drawLine(pixels, width, 50, 280, 350, 100);
+    return new EdgeMap(width, height, pixels);
+  }
+
+  private static void drawLine(byte[] pixels, int width, int x1, int y1, int x2, int y2) {
+    int steps = Math.max(Math.abs(x2 - x1), Math.abs(y2 - y1));
+    for (int s = 0; s <= steps; s++) {
+      int x = (int) Math.round(x1 + (x2 - x1) * (double) s / steps);
+      int y = (int) Math.round(y1 + (y2 - y1) * (double) s / steps);
+      pixels[y * width + x] = (byte) 255;
+    }
+  }
+
+  private static List<Line> houghLines(EdgeMap edges, int threshold) {
+    Mat edgesMat = edges.toMat();
+    Mat linesMat = new Mat();
+    try {
+      Imgproc.HoughLinesWithAccumulator(edgesMat, linesMat, 1, THETA_STEP, threshold);
+      List<Line> lines = new ArrayList<>(linesMat.rows());
+      for (int i = 0; i < linesMat.rows(); i++) {
+        double[] line = linesMat.get(i, 0);
+        lines.add(new Line((float) line[0], (float) line[1], (int) line[2]));
+      }
+      return lines;
+    } finally {
+      edgesMat.release();
+      linesMat.release();
+    }
+  }
+
+  private static List<Line> lines(HoughVotes votes) {
+    List<Hough> lines = votes.lines(votes.getThreshold());
+    List<Line> result = new ArrayList<>(lines.size());
+    for (int i = 0; i < lines.size(); i++) {
+      result.add(new Line((float) lines.get(i).getRho(), (float) lines.get(i).getTheta(), votes.getVotes(i)));
+    }
+    return result;
+  }
+
+  private static List<Line> cardinal(List<Line> lines) {
+    return lines.stream()
+        .filter(line -> line.theta() <= ANGLE_TOLERANCE
+            || Math.abs(line.theta() - Math.PI / 2) <= ANGLE_TOLERANCE
+            || Math.PI - line.theta() <= ANGLE_TOLERANCE)
+        .toList();
+  }
+}
@@ -0,0 +1,52 @@
+package org.mars.cutter.crop;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import org.opencv.core.Point;
+
+class HomographyTest {
+
+  private static final double EPSILON = 1e-9;
+
+  @Test
+  void mapsTheRectangleCornersOnTheQuad() {
+    Point[][] quads = {
+        {new Point(12, 7), new Point(230, 18), new Point(241, 170), new Point(5, 160)}, // perspective
+        {new Point(10, 20), new Point(110, 30), new Point(100, 130), new Point(0, 120)}, // parallelogram
+        {new Point(50, 0), new Point(50, 80), new Point(0, 80), new Point(0, 0)} // turned by a quadrant
+    };
+    for (Point[] q : quads) {
+      double width = 120, height = 90;
+      Homography homography = Homography.rectToQuad(width, height, q[0], q[1], q[2], q[3]);
+      double[][] corners = {{0, 0}, {width, 0}, {width, height}, {0, height}};
+      for (int c = 0; c < corners.length; c++) {
+        assertEquals(q[c].x, homography.mapX(corners[c][0], corners[c][1]), EPSILON, "x of corner " + c);
+        assertEquals(q[c].y, homography.mapY(corners[c][0], corners[c][1]), EPSILON, "y of corner " + c);
+      }
+    }
+  }
+
+  @Test
+  void mapsLinesLikePoints() {
+    Homography homography = Homography.rectToQuad(300, 200,
+        new Point(3.5, 9.25), new Point(310, 1), new Point(295.75, 220), new Point(-4, 205.5));
+    int length = 300;
+    double[] xs = new double[length], ys = new double[length];
+    for (double[] line : new double[][] {{0.5, 17.5, 1, 0}, {42.5, 0.5, 0, 1}, {0.5, 0.5, 1, 0.5}}) {
+      homography.mapLine(line[0], line[1], line[2], line[3], xs, ys);
+      for (int i = 0; i < length; i++) {
+        double x = line[0] + i * line[2], y = line[1] + i * line[3];
+        assertEquals(homography.mapX(x, y), xs[i], EPSILON);
+        assertEquals(homography.mapY(x, y), ys[i], EPSILON);
+      }
+    }
+  }
+
+  @Test
+  void rejectsDegenerateQuads() {
+    assertThrows(IllegalArgumentException.class, () -> Homography.rectToQuad(10, 10,
+        new Point(0, 0), new Point(10, 0), new Point(10, 0), new Point(0, 10)));
+  }
+}
@@ -0,0 +1,185 @@
+package org.mars.cutter.crop;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.mars.cutter.Quadri;
+import org.mars.cutter.domain.Rotation;
+import org.opencv.core.Point;
+
+/**
+ * The warp against sampling each output pixel on its own: an exact copy for upright quadris, a bicubic convolution
+ * with the kernel computed for each sample otherwise
+ */
+class QuadriWarpTest {
+
+  private static final int WIDTH = 160;
+  private static final int HEIGHT = 120;
+
+  @Test
+  void copiesUprightQuadrisExactly() {
+    BufferedImage source = source(BufferedImage.TYPE_3BYTE_BGR);
+    for (Rotation rotation : Rotation.values()) {
+      BufferedImage output = new QuadriWarp(quadri(rotation, new Point(30, 20), new Point(130, 20), new Point(130, 90), new Point(30, 90)))
+          .apply(source);
+      boolean turned = rotation.getQuadrants() % 2 != 0;
+      assertEquals(turned ? 70 : 100, output.getWidth());
+      assertEquals(turned ? 100 : 70, output.getHeight());
+      for (int y = 0; y < output.getHeight(); y++) {
+        for (int x = 0; x < output.getWidth(); x++) {
+          int sx, sy;
+          switch (rotation) {
+            case UP -> { sx = 30 + x; sy = 20 + y; }
+            case CLOCK -> { sx = 30 + y; sy = 89 - x; }
+            case DOWN -> { sx = 129 - x; sy = 89 - y; }
+            default -> { sx = 129 - y; sy = 20 + x; }
+          }
+          assertEquals(source.getRGB(sx, sy), output.getRGB(x, y), rotation + " at " + x + ", " + y);
+        }
+      }
+    }
+  }
+
+  @Test
+  void resamplesTiltedQuadrisBicubically() {
+    BufferedImage source = source(BufferedImage.TYPE_3BYTE_BGR);
+    Point[] corners = {new Point(20.3, 14.8), new Point(139.6, 21.1), new Point(133.2, 104.7), new Point(14.1, 97.9)};
+    QuadriWarp warp = new QuadriWarp(quadri(Rotation.UP, corners));
+    BufferedImage output = warp.apply(source);
+    assertFalse(output.getColorModel().hasAlpha(), "fully covered, so no alpha");
+
+    Homography homography = Homography.rectToQuad(warp.getWidth(), warp.getHeight(), corners[0], corners[1], corners[2], corners[3]);
+    for (int y = 0; y < output.getHeight(); y++) {
+      for (int x = 0; x < output.getWidth(); x++) {
+        int[] expected = bicubic(source, homography.mapX(x + 0.5, y + 0.5) - 0.5, homography.mapY(x + 0.5, y + 0.5) - 0.5);
+        int actual = output.getRGB(x, y);
+        for (int c = 0; c < 3; c++) {
+          // the kernel weights come from a table of sub-pixel phases, a sample may be off by one
+          assertEquals(expected[c], (actual >> (16 - 8 * c)) & 0xff, 1, "channel " + c + " at " + x + ", " + y);
+        }
+      }
+    }
+  }
+
+  @Test
+  void leavesWhatsOffTheSourceTransparent() {
+    BufferedImage source = source(BufferedImage.TYPE_3BYTE_BGR);
+    BufferedImage output = new QuadriWarp(quadri(Rotation.UP, new Point(-20.4, 10.2), new Point(80.1, 12), new Point(79.5, 60.3), new Point(-21, 58.8)))
+        .apply(source);
+    assertTrue(output.getColorModel().hasAlpha());
+    assertEquals(0, output.getRGB(2, 20) >>> 24, "off the source");
+    assertEquals(255, output.getRGB(60, 20) >>> 24, "on the source");
+  }
+
+  @Test
+  void keepsGraySourcesGray() {
+    BufferedImage output = new QuadriWarp(quadri(Rotation.CLOCK, new Point(10.5, 10), new Point(100, 12.5), new Point(98, 80), new Point(9, 77)))
+        .apply(source(BufferedImage.TYPE_BYTE_GRAY));
+    assertEquals(1, output.getColorModel().getNumComponents());
+  }
+
+  @Test
+  void sweepsLikeEachQuadriOnItsOwn() {
+    BufferedImage source = source(BufferedImage.TYPE_3BYTE_BGR);
+    List<QuadriWarp> warps = List.of(
+        new QuadriWarp(quadri(Rotation.UP, new Point(5, 5), new Point(75, 5), new Point(75, 55), new Point(5, 55))),
+        new QuadriWarp(quadri(Rotation.CLOCK, new Point(82.2, 4.1), new Point(151.7, 8.3), new Point(148.9, 70.6), new Point(80.4, 66.2))),
+        new QuadriWarp(quadri(Rotation.DOWN, new Point(10.6, 62.3), new Point(70.2, 60.8), new Point(72.9, 115.4), new Point(8.1, 117.7))),
+        new QuadriWarp(quadri(Rotation.ANTI, new Point(90, 75.5), new Point(170, 78), new Point(168, 130), new Point(88, 127))));
+    List<BufferedImage> outputs = BatchQuadriWarp.apply(source, warps);
+    for (int w = 0; w < warps.size(); w++) {
+      BufferedImage expected = warps.get(w).apply(source), actual = outputs.get(w);
+      assertEquals(expected.getWidth(), actual.getWidth());
+      assertEquals(expected.getHeight(), actual.getHeight());
+      for (int y = 0; y < expected.getHeight(); y++) {
+        for (int x = 0; x < expected.getWidth(); x++) {
+          assertEquals(expected.getRGB(x, y), actual.getRGB(x, y), "quadri " + w + " at " + x + ", " + y);
+        }
+      }
+    }
+  }
+
+  @Test
+  void sweepsBandByBandLikeAllAtOnce() {
+    BufferedImage source = source(BufferedImage.TYPE_3BYTE_BGR);
+    List<QuadriWarp> warps = List.of(
+        new QuadriWarp(quadri(Rotation.UP, new Point(5, 5), new Point(75, 5), new Point(75, 55), new Point(5, 55))),
+        new QuadriWarp(quadri(Rotation.UP, new Point(82.2, 4.1), new Point(151.7, 8.3), new Point(148.9, 70.6), new Point(80.4, 66.2))),
+        new QuadriWarp(quadri(Rotation.DOWN, new Point(10.6, 62.3), new Point(70.2, 60.8), new Point(72.9, 115.4), new Point(8.1, 117.7))),
+        new QuadriWarp(quadri(Rotation.CLOCK, new Point(90, 75.5), new Point(170, 78), new Point(168, 130), new Point(88, 127))));
+    int windowRows = BatchQuadriWarp.windowRows(warps);
+    List<BufferedImage> expected = BatchQuadriWarp.apply(source, warps);
+    List<BufferedImage> actual = BatchQuadriWarp.apply(HEIGHT, (top, bottom) -> {
+      assertTrue(top >= 0 && bottom <= HEIGHT && bottom - top <= windowRows, "band " + top + ", " + bottom);
+      BufferedImage band = new BufferedImage(WIDTH, bottom - top, BufferedImage.TYPE_3BYTE_BGR);
+      band.getGraphics().drawImage(source.getSubimage(0, top, WIDTH, bottom - top), 0, 0, null);
+      return band; // a copy, any row read off the band would not be the source's
+    }, warps, ForkJoinPool.commonPool());
+    for (int w = 0; w < warps.size(); w++) {
+      for (int y = 0; y < expected.get(w).getHeight(); y++) {
+        for (int x = 0; x < expected.get(w).getWidth(); x++) {
+          assertEquals(expected.get(w).getRGB(x, y), actual.get(w).getRGB(x, y), "quadri " + w + " at " + x + ", " + y);
+        }
+      }
+    }
+  }
+
+  private static Quadri quadri(Rotation rotation, Point... corners) {
+    return new Quadri("test", corners[0], corners[1], corners[2], corners[3], Color.red, rotation);
+  }
+
+  /**
+   * Smooth enough for the bicubic samples to stay within the byte range, with some detail in every channel
+   */
+  private static BufferedImage source(int type) {
+    BufferedImage source = new BufferedImage(WIDTH, HEIGHT, type);
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        int r = (int) (128 + 100 * Math.sin(x / 7.0));
+        int g = (int) (128 + 100 * Math.cos(y / 5.0));
+        int b = (x + 2 * y) % 256;
+        source.setRGB(x, y, r << 16 | g << 8 | b);
+      }
+    }
+    return source;
+  }
+
+  /**
+   * Bicubic convolution with a = -0.5 at pixel grid coordinates, the border pixels repeated outwards
+   */
+  private static int[] bicubic(BufferedImage source, double x, double y) {
+    int ix = (int) Math.floor(x), iy = (int) Math.floor(y);
+    double[] wx = new double[4], wy = new double[4];
+    for (int i = 0; i < 4; i++) {
+      wx[i] = kernel(x - (ix - 1 + i));
+      wy[i] = kernel(y - (iy - 1 + i));
+    }
+    int[] rgb = new int[3];
+    for (int c = 0; c < 3; c++) {
+      double sum = 0;
+      for (int j = 0; j < 4; j++) {
+        int sy = Math.clamp(iy - 1 + j, 0, source.getHeight() - 1);
+        for (int i = 0; i < 4; i++) {
+          int sx = Math.clamp(ix - 1 + i, 0, source.getWidth() - 1);
+          sum += wx[i] * wy[j] * ((source.getRGB(sx, sy) >> (16 - 8 * c)) & 0xff);
+        }
+      }
+      rgb[c] = (int) Math.clamp(Math.round(sum), 0, 255);
+    }
+    return rgb;
+  }
+
+  private static double kernel(double d) {
+    double a = -0.5;
+    d = Math.abs(d);
+    return d <= 1 ? ((a + 2) * d - (a + 3)) * d * d + 1
+        : d < 2 ? ((a * d - 5 * a) * d + 8 * a) * d - 4 * a
+        : 0;
+  }
+}
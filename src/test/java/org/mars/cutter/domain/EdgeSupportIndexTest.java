@@ -0,0 +1,108 @@
+package org.mars.cutter.domain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The prefix sum queries against counting the lit pixels one by one
+ */
+class EdgeSupportIndexTest {
+
+  private static final int WIDTH = 97;
+  private static final int HEIGHT = 61;
+
+  private final Random random = new Random(42);
+  private final EdgeMap edges = randomEdges(random);
+  private final EdgeSupportIndex index = new EdgeSupportIndex(edges);
+
+  private static EdgeMap randomEdges(Random random) {
+    byte[] pixels = new byte[WIDTH * HEIGHT];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = random.nextInt(10) < 3 ? (byte) 255 : 0;
+    }
+    return new EdgeMap(WIDTH, HEIGHT, pixels);
+  }
+
+  @Test
+  void countsRowsAndColumns() {
+    for (int i = 0; i < 2000; i++) {
+      int x = random.nextInt(WIDTH + 10) - 5, y = random.nextInt(HEIGHT + 10) - 5;
+      int from = random.nextInt(WIDTH + 20) - 10, to = random.nextInt(WIDTH + 20) - 10;
+      int expected = 0;
+      for (int c = from; c <= to; c++) {
+        expected += edges.isLit(c, y) ? 1 : 0;
+      }
+      assertEquals(expected, index.countRow(y, from, to), "row " + y + " [" + from + ", " + to + "]");
+
+      from = random.nextInt(HEIGHT + 20) - 10;
+      to = random.nextInt(HEIGHT + 20) - 10;
+      expected = 0;
+      for (int r = from; r <= to; r++) {
+        expected += edges.isLit(x, r) ? 1 : 0;
+      }
+      assertEquals(expected, index.countColumn(x, from, to), "column " + x + " [" + from + ", " + to + "]");
+    }
+  }
+
+  @Test
+  void countsNearVerticalLines() {
+    for (int i = 0; i < 2000; i++) {
+      double tilt = Math.abs(randomTilt());
+      double theta = random.nextBoolean() ? tilt : Math.PI - tilt;
+      Hough line = new Hough(theta < Math.PI / 2 ? random.nextDouble(-10, WIDTH + 10) : -random.nextDouble(-10, WIDTH + 10), theta);
+      double top = random.nextDouble(-10, HEIGHT + 10), bottom = random.nextDouble(-10, HEIGHT + 10);
+
+      int expected = 0;
+      for (int k = 0; k <= Math.floor(bottom - top); k++) {
+        expected += edges.isLit((int) Math.round(line.getX(top + k)), (int) (Math.round(top) + k)) ? 1 : 0;
+      }
+      assertEquals(expected, index.countVertical(line, top, bottom), line + " from " + top + " to " + bottom);
+    }
+  }
+
+  @Test
+  void countsNearHorizontalLines() {
+    for (int i = 0; i < 2000; i++) {
+      Hough line = new Hough(random.nextDouble(-10, HEIGHT + 10), Hough.HALF_PI + randomTilt());
+      double left = random.nextDouble(-10, WIDTH + 10), right = random.nextDouble(-10, WIDTH + 10);
+
+      int expected = 0;
+      for (int k = 0; k <= Math.floor(right - left); k++) {
+        expected += edges.isLit((int) (Math.round(left) + k), (int) Math.round(line.getY(left + k))) ? 1 : 0;
+      }
+      assertEquals(expected, index.countHorizontal(line, left, right), line + " from " + left + " to " + right);
+    }
+  }
+
+  @Test
+  void countsNothingOutsideTheImage() {
+    byte[] pixels = new byte[WIDTH * HEIGHT];
+    Arrays.fill(pixels, (byte) 255);
+    EdgeSupportIndex lit = new EdgeSupportIndex(new EdgeMap(WIDTH, HEIGHT, pixels));
+
+    assertEquals(HEIGHT, lit.countVertical(new Hough(5, 0), -10, HEIGHT + 10));
+    assertEquals(WIDTH, lit.countHorizontal(new Hough(5, Hough.HALF_PI), -10, WIDTH + 10));
+    assertEquals(0, lit.countVertical(new Hough(-1, 0), 0, HEIGHT - 1));
+    assertEquals(0, lit.countVertical(new Hough(WIDTH, 0), 0, HEIGHT - 1));
+    assertEquals(0, lit.countHorizontal(new Hough(-1, Hough.HALF_PI), 0, WIDTH - 1));
+    assertEquals(0, lit.countHorizontal(new Hough(HEIGHT, Hough.HALF_PI), 0, WIDTH - 1));
+
+    // leaving the image through its right edge, only the samples still on it count
+    Hough tilted = new Hough(-(WIDTH - 2), Math.PI - Math.toRadians(2));
+    int inside = 0;
+    for (int y = 0; y < HEIGHT; y++) {
+      inside += Math.round(tilted.getX(y)) < WIDTH ? 1 : 0;
+    }
+    assertEquals(inside, lit.countVertical(tilted, 0, HEIGHT - 1));
+  }
+
+  /**
+   * @return up to 3° either way, or none at all now and then
+   */
+  private double randomTilt() {
+    return random.nextInt(10) == 0 ? 0 : Math.toRadians(random.nextDouble(-3, 3));
+  }
+}
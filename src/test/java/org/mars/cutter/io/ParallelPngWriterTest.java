@@ -0,0 +1,94 @@
+package org.mars.cutter.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+import org.mars.cutter.io.ParallelPngWriter.Filter;
+
+/**
+ * PNGs written in parallel blocks, read back through ImageIO
+ */
+class ParallelPngWriterTest {
+
+  private static final int[] TYPES = {BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_3BYTE_BGR,
+      BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB};
+
+  @Test
+  void readsBackEveryFilter() throws IOException {
+    for (int type : TYPES) {
+      BufferedImage image = image(type, 300, 200);
+      for (Filter filter : Filter.values()) {
+        assertReadsBack(image, new ParallelPngWriter(ParallelPngWriter.DEFAULT_LEVEL, filter), type + " " + filter);
+      }
+    }
+  }
+
+  @Test
+  void readsBackEveryLevel() throws IOException {
+    BufferedImage image = image(BufferedImage.TYPE_3BYTE_BGR, 300, 200);
+    for (int level = Deflater.NO_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level++) {
+      assertReadsBack(image, new ParallelPngWriter(level, Filter.ADAPTIVE), "level " + level);
+    }
+  }
+
+  @Test
+  void readsBackManyBlocks() throws IOException {
+    // far more blocks than are in flight at once, so they're streamed out in a window
+    BufferedImage image = image(BufferedImage.TYPE_4BYTE_ABGR, 1500, 900);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      assertReadsBack(image, new ParallelPngWriter(1, Filter.PAETH, executor), "own executor");
+    } finally {
+      executor.shutdown();
+    }
+    assertReadsBack(image, new ParallelPngWriter(ParallelPngWriter.DEFAULT_LEVEL, Filter.UP), "common pool");
+  }
+
+  @Test
+  void readsBackTinyImages() throws IOException {
+    for (int type : TYPES) {
+      assertReadsBack(image(type, 1, 1), new ParallelPngWriter(ParallelPngWriter.DEFAULT_LEVEL, Filter.ADAPTIVE), "1x1 " + type);
+      assertReadsBack(image(type, 1, 700), new ParallelPngWriter(ParallelPngWriter.DEFAULT_LEVEL, Filter.SUB), "1x700 " + type);
+    }
+  }
+
+  private static void assertReadsBack(BufferedImage image, ParallelPngWriter writer, String message) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writer.write(image, out);
+    BufferedImage read = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(image.getWidth(), read.getWidth(), message);
+    assertEquals(image.getHeight(), read.getHeight(), message);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        assertEquals(image.getRGB(x, y), read.getRGB(x, y), message + " at " + x + ", " + y);
+      }
+    }
+  }
+
+  /**
+   * Gradients for the filters to work on, noise for the deflater not to have it too easy
+   */
+  private static BufferedImage image(int type, int width, int height) {
+    BufferedImage image = new BufferedImage(width, height, type);
+    Random random = new Random(type * 31L + width);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int r = (x * 7 + y * 3 + random.nextInt(8)) & 0xff;
+        int g = (x ^ y) & 0xff;
+        int b = (y * 5 + random.nextInt(40)) & 0xff;
+        int a = image.getColorModel().hasAlpha() ? (x * y + 30) & 0xff : 0xff;
+        image.setRGB(x, y, a << 24 | r << 16 | g << 8 | b);
+      }
+    }
+    return image;
+  }
+}